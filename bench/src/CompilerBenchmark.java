@@ -0,0 +1,115 @@
+import ast.ProgramNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Measures each phase of the compiler, and all of them together, on a synthetic contract.
+ * <p>
+ * Every phase after the first runs on the output of the phases before it, prepared
+ * outside of the measurement. Semantic analysis annotates the tree it checks, so it
+ * gets a freshly parsed tree for every invocation.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+    // a tree to analyze, parsed again before every invocation
+    @State(Scope.Thread)
+    public static class Parsed {
+        public ProgramNode program;
+
+        @Setup(Level.Invocation)
+        public void parse(CompilerBenchmark benchmark) {
+            program = Frontend.lexparse(benchmark.options.source);
+        }
+    }
+
+    @Param({"10", "100"})
+    public int methods;
+
+    @Param({"1", "20"})
+    public int attributes;
+
+    @Param({"3", "20"})
+    public int statements;
+
+    @Param({"4", "16"})
+    public int depth;
+
+    @Param({"1"})
+    public long seed;
+
+    private Path source;
+    private Options options;
+
+    // analyzed and folded, for emit
+    private ProgramNode analyzed;
+
+    // for creation
+    private String runtimeCode;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = Files.createTempFile("synthetic", ".sol");
+        Files.writeString(source, new ContractGenerator(seed).generate(methods, attributes, statements, depth));
+        options = Options.parse(new String[]{source.toString()});
+
+        analyzed = Frontend.lexparse(options.source);
+        Semant.analyze(analyzed);
+        analyzed.accept(new ConstantFoldingVisitor(), null);
+        runtimeCode = new Cgen(options).emit(analyzed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+    }
+
+    @Benchmark
+    public ProgramNode lexparse() {
+        return Frontend.lexparse(options.source);
+    }
+
+    @Benchmark
+    public ProgramNode analyze(Parsed parsed) {
+        Semant.analyze(parsed.program);
+        return parsed.program;
+    }
+
+    @Benchmark
+    public String emit() {
+        return new Cgen(options).emit(analyzed);
+    }
+
+    @Benchmark
+    public String creation() {
+        return CgenCreation.emit(runtimeCode);
+    }
+
+    // every phase the compile command runs, without writing any output
+    @Benchmark
+    public String endToEnd() {
+        var compilation = new Compilation(options);
+        compilation.compile();
+        compilation.analyze();
+        return compilation.creationCode;
+    }
+}
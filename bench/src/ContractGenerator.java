@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Generates synthetic contracts of a given size, the same contract for the same seed.
+ * <p>
+ * Even numbered methods are public and odd numbered ones internal. Only public methods call,
+ * and only internal methods with a lower number, so calls never nest. Expressions nest to the
+ * given depth through their right operand or one branch of a ternary, and calls only take
+ * leaves as arguments. Codegen evaluates right operands first and the condition of a ternary
+ * before its branches, so the stack stays shallow however deep the expression is, and every
+ * generated contract compiles.
+ * */
+public class ContractGenerator {
+    private static final String[] TYPES = {"uint256", "uint8", "uint64", "bool", "uint32", "uint16", "uint128"};
+    private static final String[] OPERATORS = {"+", "-", "*", "/"};
+
+    private static final int PARAMS = 2;
+
+    // locals a method declares at most, later statements assign attributes, so frames stay within DUP16
+    private static final int LOCALS = 8;
+
+    private Random random;
+
+    private int attributes;
+    private List<String> leaves = new ArrayList<>();
+    private List<Integer> callees = new ArrayList<>();
+    private boolean isPublic;
+
+    public ContractGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /** Returns the source of a contract
+     *
+     * @param methods    the number of methods
+     * @param attributes the number of attributes, at least one
+     * @param statements the number of statements in each method, besides the return
+     * @param depth      how deep expressions nest
+     * */
+    public String generate(int methods, int attributes, int statements, int depth) {
+        this.attributes = Math.max(attributes, 1);
+
+        var out = new StringBuilder();
+        out.append("pragma solidity 0.8.23;\n\ncontract Synthetic {\n");
+
+        for (int i = 0; i < this.attributes; i++)
+            out.append(String.format("    %s private a%d;\n", getType(i), i));
+
+        callees.clear();
+        for (int i = 0; i < methods; i++) {
+            out.append("\n");
+            emitMethod(out, i, statements, depth);
+            if (i % 2 == 1)
+                callees.add(i);
+        }
+
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static String getType(int attribute) {
+        return TYPES[attribute % TYPES.length];
+    }
+
+    private void emitMethod(StringBuilder out, int index, int statements, int depth) {
+        isPublic = index % 2 == 0;
+
+        var params = new ArrayList<String>();
+        for (int i = 0; i < PARAMS; i++)
+            params.add("uint256 p" + i);
+
+        out.append(String.format("    function m%d(%s) %s {\n", index, String.join(", ", params),
+                isPublic ? "public packed" : "internal returns (uint256)"));
+
+        leaves.clear();
+        for (int i = 0; i < PARAMS; i++)
+            leaves.add("p" + i);
+
+        for (int i = 0; i < statements; i++) {
+            if (leaves.size() < PARAMS + LOCALS && random.nextBoolean()) {
+                out.append(String.format("        uint256 l%d = %s;\n", i, getExpression(depth)));
+                leaves.add("l" + i);
+            } else {
+                var attribute = random.nextInt(attributes);
+                out.append(String.format("        a%d = %s;\n", attribute, getValue(getType(attribute), depth)));
+            }
+        }
+
+        if (!isPublic)
+            out.append(String.format("        return %s;\n", getExpression(depth)));
+
+        out.append("    }\n");
+    }
+
+    // an expression of the given type
+    private String getValue(String type, int depth) {
+        return switch (type) {
+            case "uint256" -> getExpression(depth);
+            case "bool" -> getCondition();
+            default -> String.format("%s(%s)", type, getExpression(depth));
+        };
+    }
+
+    private String getLeaf() {
+        var choice = random.nextInt(4);
+        if (choice == 0)
+            return Integer.toString(random.nextInt(1000));
+
+        if (choice == 1) {
+            var attribute = random.nextInt(attributes);
+            var type = getType(attribute);
+            if (type.equals("bool"))
+                return String.format("(a%d ? 1 : 0)", attribute);
+            return type.equals("uint256") ? "a" + attribute : String.format("uint256(a%d)", attribute);
+        }
+
+        return leaves.get(random.nextInt(leaves.size()));
+    }
+
+    private String getCondition() {
+        var operator = switch (random.nextInt(3)) {
+            case 0 -> "<";
+            case 1 -> "<=";
+            default -> "==";
+        };
+        return String.format("(%s %s %s)", getLeaf(), operator, getLeaf());
+    }
+
+    private String getExpression(int depth) {
+        if (depth <= 0)
+            return getLeaf();
+
+        var choice = random.nextInt(callees.isEmpty() || !isPublic ? 5 : 6);
+        if (choice < 4)
+            return String.format("%s %s (%s)", getLeaf(), OPERATORS[choice], getExpression(depth - 1));
+        // only one branch nests, so the size of an expression grows linearly with its depth
+        if (choice == 4) {
+            var branch = getExpression(depth - 1);
+            return random.nextBoolean()
+                    ? String.format("%s ? (%s) : %s", getCondition(), branch, getLeaf())
+                    : String.format("%s ? %s : (%s)", getCondition(), getLeaf(), branch);
+        }
+
+        // arguments are pushed above the return address in order, so nesting through them would not stay shallow
+        var callee = callees.get(random.nextInt(callees.size()));
+        return String.format("m%d(%s, %s) %s (%s)", callee, getLeaf(), getLeaf(), OPERATORS[random.nextInt(OPERATORS.length)],
+                getExpression(depth - 1));
+    }
+
+    /** Prints a contract, given the number of methods, attributes, statements per method, expression depth and seed
+     * */
+    public static void main(String[] args) {
+        if (args.length != 5) {
+            System.err.println("Usage: ContractGenerator <methods> <attributes> <statements> <depth> <seed>");
+            System.exit(1);
+        }
+
+        var generator = new ContractGenerator(Long.parseLong(args[4]));
+        System.out.print(generator.generate(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3])));
+    }
+}
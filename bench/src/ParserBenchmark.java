@@ -0,0 +1,69 @@
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Compares parsing with full LL prediction against parsing with SLL first, as Frontend does.
+ * <p>
+ * The source is lexed once, outside of the measurement, so only the parser is measured.
+ * Both parsers share the static DFA cache of SolidityParser, as compilations in the same
+ * JVM do, so after warmup this measures parsing with a warm cache.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"1000", "5000"})
+    public int methods;
+
+    @Param({"10"})
+    public int attributes;
+
+    @Param({"3"})
+    public int statements;
+
+    @Param({"8"})
+    public int depth;
+
+    @Param({"1"})
+    public long seed;
+
+    private CommonTokenStream tokens;
+
+    @Setup
+    public void setUp() {
+        var text = new ContractGenerator(seed).generate(methods, attributes, statements, depth);
+        tokens = new CommonTokenStream(new SolidityLexer(new ANTLRInputStream(text)));
+        tokens.fill();
+    }
+
+    // how the front end parsed before, in ANTLR's default mode
+    @Benchmark
+    public ParserRuleContext ll() {
+        tokens.seek(0);
+        var parser = new SolidityParser(tokens);
+        parser.removeErrorListeners();
+        return parser.program();
+    }
+
+    @Benchmark
+    public ParserRuleContext sllThenLl() {
+        tokens.seek(0);
+        return Frontend.parse(new SolidityParser(tokens), new SyntaxErrorCollector("benchmark"));
+    }
+}
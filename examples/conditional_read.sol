@@ -0,0 +1,11 @@
+// SPDX-License-Identifier: MIT
+pragma solidity 0.8.23;
+
+contract ConditionalRead {
+    uint256 private a;
+    uint256 private b;
+
+    function foo(bool c) public packed {
+        b = c ? a + a : 1;
+    }
+}
@@ -0,0 +1,24 @@
+// SPDX-License-Identifier: MIT
+pragma solidity 0.8.23;
+
+contract DeepExpression {
+    uint256 private a0;
+    uint256 private a1;
+    uint256 private a2;
+    uint256 private a3;
+    uint256 private a4;
+    uint256 private a5;
+    uint256 private a6;
+    uint256 private a7;
+    uint256 private a8;
+    uint256 private a9;
+    uint256 private a10;
+    uint256 private a11;
+    uint256 private r;
+
+    // reads every attribute twice, then evaluates an expression eight deep
+    function foo(uint256 x) public packed {
+        r = a0 * a0 + a1 * a1 + a2 * a2 + a3 * a3 + a4 * a4 + a5 * a5 + a6 * a6 + a7 * a7 + a8 * a8 + a9 * a9 + a10 * a10 + a11 * a11;
+        r = r + ((((((((x + a0) + a1) + a2) + a3) + a4) + a5) + a6) + a7);
+    }
+}
@@ -0,0 +1,13 @@
+// SPDX-License-Identifier: MIT
+pragma solidity 0.8.23;
+
+contract LoneField {
+    uint8 private c;
+    uint256 private s;
+
+    // c has a slot of its own, and still keeps only its low byte
+    function foo(uint256 x) public packed {
+        c = uint8(x);
+        s = uint256(c);
+    }
+}
@@ -0,0 +1,12 @@
+// SPDX-License-Identifier: MIT
+pragma solidity 0.8.23;
+
+contract NestedReturn {
+    uint256 private attr;
+
+    // a return inside the ternary would leave the method without its value
+    function foo(uint256 v) public packed returns (uint256) {
+        v == 0 ? (return 1) : 0;
+        return v;
+    }
+}
@@ -0,0 +1,4 @@
+# setC by its selector in bare upper-case hex, setB with an upper-case 0X
+B0A654EA    9000
+0X61440340  50
+setA        1
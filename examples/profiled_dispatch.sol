@@ -0,0 +1,20 @@
+// SPDX-License-Identifier: MIT
+pragma solidity 0.8.23;
+
+contract ProfiledDispatch {
+    uint256 private a;
+    uint256 private b;
+    uint256 private c;
+
+    function setA(uint256 v) public packed {
+        a = v;
+    }
+
+    function setB(uint256 v) public packed {
+        b = v;
+    }
+
+    function setC(uint256 v) public packed {
+        c = v;
+    }
+}
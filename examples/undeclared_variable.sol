@@ -0,0 +1,11 @@
+// SPDX-License-Identifier: MIT
+pragma solidity 0.8.23;
+
+contract UndeclaredVariable {
+    uint256 private attr;
+
+    // stores a variable that was never declared
+    function foo(uint256 v) public packed {
+        attr = v + w;
+    }
+}
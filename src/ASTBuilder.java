@@ -1,16 +1,34 @@
 import ast.*;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
 
 import java.util.ArrayList;
 
 public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
+    // the symbols of this compilation
+    public StringTable idtable = new StringTable();
+    public StringTable stringtable = new StringTable();
+    public StringTable inttable = new StringTable();
+
+    // the source the tokens index into
+    private char[] source;
+
+    public ASTBuilder(char[] source) {
+        this.source = source;
+    }
+
     private int getLineNumber(ParserRuleContext ctx) {
         return ctx.getStart().getLine();
     }
 
     private Symbol getFileName(ParserRuleContext ctx) {
         String source = ctx.getStart().getTokenSource().getSourceName();
-        return StringTable.stringtable.addString(source); // should this be idtable?
+        return stringtable.addString(source); // should this be idtable?
+    }
+
+    // interned from the token's chars in the source, without a String for the token's text
+    private Symbol getId(Token token) {
+        return idtable.addString(source, token.getStartIndex(), token.getStopIndex() + 1);
     }
 
     @Override
@@ -21,11 +39,9 @@ public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
 
     @Override
     public Tree visitContract(SolidityParser.ContractContext ctx) {
-        String name = ctx.typeId.getText();
-
         var contract = new ContractNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name),
+                getId(ctx.typeId),
                 getFileName(ctx)
         );
 
@@ -37,21 +53,17 @@ public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
 
     @Override
     public Tree visitAttribute(SolidityParser.AttributeContext ctx) {
-        String name = ctx.objectId.getText();
-        String type = ctx.typeId.getText();
-
         return new AttributeNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name),
-                StringTable.idtable.addString(type)
+                getId(ctx.objectId),
+                getId(ctx.typeId)
         );
     }
 
     @Override
     public Tree visitMethod(SolidityParser.MethodContext ctx) {
-        String name = ctx.objectId.getText();
         Symbol type = ctx.returnType() != null
-                ? StringTable.idtable.addString(ctx.returnType().typeId.getText())
+                ? getId(ctx.returnType().typeId)
                 : TreeConstants.void_;
         boolean public_ = ctx.accessibility().PUBLIC() != null;
 
@@ -67,7 +79,7 @@ public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
 
         return new MethodNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name),
+                getId(ctx.objectId),
                 formals,
                 public_,
                 type,
@@ -91,19 +103,16 @@ public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
 
     @Override
     public Tree visitFormal(SolidityParser.FormalContext ctx) {
-        String name = ctx.objectId.getText();
-        String type = ctx.typeId.getText();
-
         return new FormalNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name),
-                StringTable.idtable.addString(type)
+                getId(ctx.objectId),
+                getId(ctx.typeId)
         );
     }
 
     @Override
     public Tree visitDispatch(SolidityParser.DispatchContext ctx) {
-        Symbol name = StringTable.idtable.addString(ctx.objectId.getText());
+        Symbol name = getId(ctx.objectId);
 
         if (TreeConstants.isPrimitive(name)) {
             // cast expression
@@ -132,26 +141,23 @@ public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
 
     @Override
     public Tree visitAssignment(SolidityParser.AssignmentContext ctx) {
-        String name = ctx.objectId.getText();
         var expr = (ExpressionNode)visit(ctx.expr());
 
         return new AssignNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name),
+                getId(ctx.objectId),
                 expr
         );
     }
 
     @Override
     public Tree visitDeclaration(SolidityParser.DeclarationContext ctx) {
-        String name = ctx.objectId.getText();
-        String type = ctx.typeId.getText();
         var expr = (ExpressionNode)visit(ctx.expr());
 
         return new DeclarationNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name),
-                StringTable.idtable.addString(type),
+                getId(ctx.objectId),
+                getId(ctx.typeId),
                 expr
         );
     }
@@ -223,21 +229,19 @@ public class ASTBuilder extends SolidityParserBaseVisitor<Tree> {
 
     @Override
     public Tree visitID(SolidityParser.IDContext ctx) {
-        String name = ctx.objectId.getText();
-
         return new ObjectNode(
                 getLineNumber(ctx),
-                StringTable.idtable.addString(name)
+                getId(ctx.objectId)
         );
     }
 
     @Override
     public Tree visitInteger(SolidityParser.IntegerContext ctx) {
-        String value = ctx.INT_CONST().getText();
+        var value = ctx.INT_CONST().getSymbol();
 
         return new IntConstNode(
                 getLineNumber(ctx),
-                StringTable.inttable.addString(value)
+                inttable.addString(source, value.getStartIndex(), value.getStopIndex() + 1)
         );
     }
 
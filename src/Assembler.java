@@ -1,104 +1,434 @@
+import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 class OpCode {
-    public static int STOP = 0x00;
-    public static int ADD = 0x01;
-    public static int MUL = 0x02;
-    public static int SUB = 0x03;
-    public static int DIV = 0x04;
-    public static int PUSH = 0x5f;
-    public static int POP = 0x50;
-    public static int DUP = 0x80;
-    public static int SWAP = 0x90;
-    public static int SHR = 0x1c;
-    public static int REVERT = 0xfd;
-    public static int CALLDATASIZE = 0x36;
-    public static int CALLDATALOAD = 0x35;
-    public static int CODECOPY = 0x39;
-    public static int RETURN = 0xf3;
-    public static int SLOAD = 0x54;
-    public static int SSTORE = 0x55;
-    public static int JUMP = 0x56;
-    public static int JUMPI = 0x57;
-    public static int JUMPDEST = 0x5B;
-    public static int ISZERO = 0x15;
-    public static int LT = 0x10;
-    public static int GT = 0x11;
-    public static int EQ = 0x14;
+    public static final int STOP = 0x00;
+    public static final int ADD = 0x01;
+    public static final int MUL = 0x02;
+    public static final int SUB = 0x03;
+    public static final int DIV = 0x04;
+    public static final int PUSH = 0x5f;
+    public static final int POP = 0x50;
+    public static final int DUP = 0x80;
+    public static final int SWAP = 0x90;
+    public static final int SHR = 0x1c;
+    public static final int REVERT = 0xfd;
+    public static final int CALLDATASIZE = 0x36;
+    public static final int CALLDATALOAD = 0x35;
+    public static final int CODECOPY = 0x39;
+    public static final int RETURN = 0xf3;
+    public static final int SLOAD = 0x54;
+    public static final int SSTORE = 0x55;
+    public static final int JUMP = 0x56;
+    public static final int JUMPI = 0x57;
+    public static final int JUMPDEST = 0x5B;
+    public static final int ISZERO = 0x15;
+    public static final int LT = 0x10;
+    public static final int GT = 0x11;
+    public static final int EQ = 0x14;
+    public static final int AND = 0x16;
+    public static final int OR = 0x17;
+    public static final int NOT = 0x19;
+    public static final int BYTE = 0x1a;
+    public static final int SHL = 0x1b;
+
+    private static final int[] GAS = new int[256];
+    static {
+        GAS[ADD] = 3;
+        GAS[MUL] = 5;
+        GAS[SUB] = 3;
+        GAS[DIV] = 5;
+        GAS[PUSH] = 2;
+        for (int i = 1; i <= 32; i++)
+            GAS[PUSH + i] = 3;
+        GAS[POP] = 2;
+        for (int i = 0; i < 16; i++) {
+            GAS[DUP + i] = 3;
+            GAS[SWAP + i] = 3;
+        }
+        GAS[SHR] = 3;
+        GAS[CALLDATASIZE] = 2;
+        GAS[CALLDATALOAD] = 3;
+        GAS[CODECOPY] = 3;
+        GAS[SLOAD] = 100;
+        GAS[SSTORE] = 100;
+        GAS[JUMP] = 8;
+        GAS[JUMPI] = 10;
+        GAS[JUMPDEST] = 1;
+        GAS[ISZERO] = 3;
+        GAS[LT] = 3;
+        GAS[GT] = 3;
+        GAS[EQ] = 3;
+        GAS[AND] = 3;
+        GAS[OR] = 3;
+        GAS[NOT] = 3;
+        GAS[BYTE] = 3;
+        GAS[SHL] = 3;
+    }
+
+    /** Returns the static gas cost of an opcode.
+     * <p>
+     * Storage opcodes are charged their warm cost and memory expansion is ignored,
+     * so this is only a lower bound for those.
+     *
+     * @param opcode the opcode
+     * */
+    public static int gas(int opcode) {
+        return GAS[opcode];
+    }
 }
 
-class LabelReference {
-    public int label;
-    public int offset;
+class Instruction {
+    // opcode of a reference to a label, which is pushed at link time
+    public static final int LABEL = -1;
+
+    public int opcode;
+
+    // label of a LABEL or JUMPDEST (-1 if it has none), or the code offset of a PUSH immediate
+    public int arg;
+
+    // immediate width of a PUSH, or the fixed width of a LABEL (0 if it is relaxed)
+    public int width;
+
+    Instruction(int opcode, int arg, int width) {
+        this.opcode = opcode;
+        this.arg = arg;
+        this.width = width;
+    }
+
+    Instruction(int opcode) {
+        this(opcode, -1, 0);
+    }
+
+    public boolean isPush() {
+        return opcode >= OpCode.PUSH && opcode <= OpCode.PUSH + 32;
+    }
+
+    public boolean isDup() {
+        return opcode >= OpCode.DUP && opcode < OpCode.DUP + 16;
+    }
+
+    public boolean isSwap() {
+        return opcode >= OpCode.SWAP && opcode < OpCode.SWAP + 16;
+    }
+
+    // relaxed labels are counted as PUSH1, which is what most of them end up as
+    public int getSize() {
+        if (opcode == LABEL)
+            return 1 + Math.max(width, 1);
+        return 1 + (isPush() ? width : 0);
+    }
 
-    LabelReference(int label, int offset) {
-        this.label = label;
-        this.offset = offset;
+    public int getGas() {
+        return opcode == LABEL ? OpCode.gas(OpCode.PUSH + 1) : OpCode.gas(opcode);
+    }
+}
+
+// code assembled on its own, which can be appended to any assembler, see Assembler.getFragment
+class Fragment {
+    public byte[] code;
+    public int gas;
+
+    // offset of each of the fragment's own labels, numbered from 0, -1 if it was not placed
+    public int[] labels;
+
+    // label references as the assembler keeps them, except that a negative label
+    // is one from outside the fragment, the one named by names[-1 - label]
+    public int[] fixupOffsets;
+    public int[] fixupLabels;
+    public int[] fixupWidths;
+    public String[] names;
+
+    // the fragment after the peephole optimizer, and the rewrites it made, if it was run
+    public Fragment optimized;
+    public Peephole peephole;
+
+    public int getMinSize() {
+        return code.length + fixupOffsets.length * 2;
+    }
+
+    // the name of the outside label the fragment ends by jumping to, null if it ends otherwise
+    public String getTailJump() {
+        var last = fixupOffsets.length - 1;
+        if (code.length == 0 || (code[code.length - 1] & 0xff) != OpCode.JUMP || last < 0
+                || fixupOffsets[last] != code.length - 1 || fixupLabels[last] >= 0 || fixupWidths[last] != 0)
+            return null;
+        return names[-1 - fixupLabels[last]];
+    }
+
+    // a copy without the final PUSH label JUMP, see getTailJump
+    public Fragment dropTailJump() {
+        var fragment = new Fragment();
+        var fixups = fixupOffsets.length - 1;
+        fragment.code = Arrays.copyOf(code, code.length - 1);
+        fragment.gas = gas - OpCode.gas(OpCode.PUSH + 1) - OpCode.gas(OpCode.JUMP);
+        fragment.labels = labels;
+        fragment.fixupOffsets = Arrays.copyOf(fixupOffsets, fixups);
+        fragment.fixupLabels = Arrays.copyOf(fixupLabels, fixups);
+        fragment.fixupWidths = Arrays.copyOf(fixupWidths, fixups);
+        fragment.names = names;
+        return fragment;
+    }
+
+    // the names of the outside labels the fragment references
+    public Set<String> getReferences() {
+        var references = new HashSet<String>();
+        for (var label : fixupLabels) {
+            if (label < 0)
+                references.add(names[-1 - label]);
+        }
+        return references;
     }
 }
 
 public class Assembler {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     private int label = 0;
-    private StringBuilder s = new StringBuilder();
-    private ArrayList<LabelReference> unresolved = new ArrayList<>();
-    private HashMap<Integer, Integer> resolved = new HashMap<>();
+    private int gas = 0;
+
+    private byte[] code = new byte[256];
+    private int size = 0;
+
+    // offset of each label's JUMPDEST, -1 until the label is placed
+    private int[] labels = new int[64];
+
+    // label references are not written to the code buffer until link time,
+    // each one is a PUSH inserted at fixupOffsets[i] with an immediate of
+    // fixupWidths[i] bytes, or a width picked by relaxation if that is 0
+    private int[] fixupOffsets = new int[64];
+    private int[] fixupLabels = new int[64];
+    private int[] fixupWidths = new int[64];
+    private int fixups = 0;
+
+    // address of each placed label in the code linked last
+    private int[] addresses = new int[0];
 
-    private void addLabelRef(int label) {
-        unresolved.add(new LabelReference(label, s.length() + 2));
+    public Assembler() {
+        Arrays.fill(labels, -1);
     }
 
-    private void resolveLabelRefs() {
-        for (var ref : unresolved) {
-            if (!resolved.containsKey(ref.label))
+    private void ensureCapacity(int bytes) {
+        if (size + bytes > code.length)
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + bytes));
+    }
+
+    private void emit(int b) {
+        ensureCapacity(1);
+        code[size++] = (byte)b;
+    }
+
+    private void addFixup(int offset, int label, int width) {
+        if (fixups == fixupOffsets.length) {
+            fixupOffsets = Arrays.copyOf(fixupOffsets, fixups * 2);
+            fixupLabels = Arrays.copyOf(fixupLabels, fixups * 2);
+            fixupWidths = Arrays.copyOf(fixupWidths, fixups * 2);
+        }
+
+        fixupOffsets[fixups] = offset;
+        fixupLabels[fixups] = label;
+        fixupWidths[fixups] = width;
+        fixups++;
+    }
+
+    private void addLabelRef(int label, int width) {
+        addFixup(size, label, width);
+        gas += OpCode.gas(OpCode.PUSH + 1);
+    }
+
+    private static int getWidth(int address) {
+        var width = 1;
+        while (width < 4 && address >>> (width * 8) != 0)
+            width++;
+        return width;
+    }
+
+    /** Picks the narrowest immediate for every relaxable label reference.
+     * <p>
+     * Every reference starts out as a PUSH1 and is widened whenever the address
+     * of its label no longer fits. Widening only ever moves labels to higher
+     * addresses, so this converges once no reference needs to grow any further.
+     * */
+    private int[] relax() {
+        for (int i = 0; i < fixups; i++) {
+            var label = fixupLabels[i];
+            if (label >= this.label || labels[label] == -1)
                 Utilities.fatalError("Assembler.get: unresolved reference/s");
+        }
 
-            var address = String.format("%08X", resolved.get(ref.label) / 2);
-            s.replace(ref.offset, ref.offset + 8, address);
+        var widths = new int[fixups];
+        for (int i = 0; i < fixups; i++)
+            widths[i] = fixupWidths[i] == 0 ? 1 : fixupWidths[i];
+
+        var addresses = new int[label];
+        var changed = true;
+        while (changed) {
+            changed = false;
+            resolveLabels(widths, addresses);
+
+            for (int i = 0; i < fixups; i++) {
+                if (fixupWidths[i] != 0)
+                    continue;
+
+                var width = getWidth(addresses[fixupLabels[i]]);
+                if (width > widths[i]) {
+                    widths[i] = width;
+                    changed = true;
+                }
+            }
         }
-        unresolved.clear();
+
+        for (int i = 0; i < fixups; i++) {
+            if (getWidth(addresses[fixupLabels[i]]) > widths[i])
+                Utilities.fatalError("Assembler.get: label address exceeds fixed immediate width");
+        }
+
+        return widths;
+    }
+
+    // a label placed at the same offset as a reference comes after it,
+    // since the reference was added before the JUMPDEST was emitted
+    private void resolveLabels(int[] widths, int[] addresses) {
+        var inserted = new int[fixups + 1];
+        for (int i = 0; i < fixups; i++)
+            inserted[i + 1] = inserted[i] + 1 + widths[i];
+
+        for (int label = 0; label < this.label; label++) {
+            var offset = labels[label];
+            if (offset == -1)
+                continue;
+
+            // number of references at or before the label
+            int lo = 0, hi = fixups;
+            while (lo < hi) {
+                var mid = (lo + hi) >>> 1;
+                if (fixupOffsets[mid] <= offset)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            addresses[label] = offset + inserted[lo];
+        }
+    }
+
+    private byte[] link() {
+        var widths = relax();
+        addresses = new int[label];
+        Arrays.fill(addresses, -1);
+        resolveLabels(widths, addresses);
+
+        var length = size;
+        for (int i = 0; i < fixups; i++)
+            length += 1 + widths[i];
+
+        var out = new byte[length];
+        int from = 0, to = 0;
+        for (int i = 0; i < fixups; i++) {
+            var bytes = fixupOffsets[i] - from;
+            System.arraycopy(code, from, out, to, bytes);
+            from += bytes;
+            to += bytes;
+
+            var width = widths[i];
+            var address = addresses[fixupLabels[i]];
+            out[to++] = (byte)(OpCode.PUSH + width);
+            for (int j = width - 1; j >= 0; j--, address >>>= 8)
+                out[to + j] = (byte)address;
+            to += width;
+        }
+        System.arraycopy(code, from, out, to, size - from);
+
+        return out;
     }
 
     public Assembler OP(int opcode) {
-        s.append(String.format("%02X", opcode));
+        emit(opcode);
+        gas += OpCode.gas(opcode);
         return this;
     }
 
     public int getLabel() {
+        if (label == labels.length) {
+            var from = labels.length;
+            labels = Arrays.copyOf(labels, from * 2);
+            Arrays.fill(labels, from, labels.length, -1);
+        }
         return label++;
     }
 
-    public Assembler PUSH(int bytes, String immediate) {
-        if (bytes > 32)
-            Utilities.fatalError("Assembler.PUSH: bytes exceeds maximum of 32");
+    /** Returns the sum of the static gas of every instruction emitted so far.
+     * <p>
+     * Taking the difference before and after emitting a straight-line block
+     * gives the cost of executing that block.
+     * */
+    public int getGas() {
+        return gas;
+    }
+
+    /** Pushes a constant with the narrowest PUSH that fits it, PUSH0 for zero
+     *
+     * @param value the constant, between 0 and 2^256 - 1
+     * */
+    public Assembler PUSH(BigInteger value) {
+        if (value.signum() < 0 || value.bitLength() > 256)
+            Utilities.fatalError("Assembler.PUSH: immediate out of range " + value);
 
-        if (immediate.length() != bytes * 2)
-            Utilities.fatalError("Assembler.PUSH: immediate length mismatch");
+        var bytes = (value.bitLength() + 7) / 8;
+        OP(OpCode.PUSH + bytes);
 
-        s.append(String.format("%02X", OpCode.PUSH + bytes));
-        s.append(immediate);
+        // toByteArray may add a leading sign byte
+        var immediate = value.toByteArray();
+        ensureCapacity(bytes);
+        System.arraycopy(immediate, immediate.length - bytes, code, size, bytes);
+        size += bytes;
         return this;
     }
 
-    public Assembler PUSH(int bytes, int immediate) {
-        var str = String.format("%0" + (bytes * 2) + "X", immediate);
-        return PUSH(bytes, str);
+    public Assembler PUSH(long value) {
+        if (value < 0)
+            Utilities.fatalError("Assembler.PUSH: immediate out of range " + value);
+
+        var bytes = (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
+        OP(OpCode.PUSH + bytes);
+
+        ensureCapacity(bytes);
+        for (int i = bytes - 1; i >= 0; i--, value >>>= 8)
+            code[size + i] = (byte)value;
+        size += bytes;
+        return this;
     }
 
-    public Assembler PUSH(int label) {
-        addLabelRef(label);
-        return PUSH(4, 0);
+    public Assembler PUSHLABEL(int label) {
+        addLabelRef(label, 0);
+        return this;
+    }
+
+    /** Pushes the address of a label with a fixed-width immediate
+     * <p>
+     * Unlike PUSHLABEL(label), the size of this instruction never changes, so it can
+     * be used by code that computes jump targets from instruction sizes.
+     *
+     * @param label the label
+     * @param bytes the immediate width
+     * */
+    public Assembler PUSHLABEL(int label, int bytes) {
+        addLabelRef(label, bytes);
+        return this;
     }
 
     public Assembler JUMPI(int label) {
-        addLabelRef(label);
-        PUSH(4, 0);
+        PUSHLABEL(label);
         return OP(OpCode.JUMPI);
     }
 
     public Assembler JUMP(int label) {
-        addLabelRef(label);
-        PUSH(4, 0);
+        PUSHLABEL(label);
         return OP(OpCode.JUMP);
     }
 
@@ -107,24 +437,26 @@ public class Assembler {
     }
 
     public Assembler JUMPDEST(int label) {
-        resolved.put(label, s.length());
+        labels[label] = size;
         return OP(OpCode.JUMPDEST);
     }
 
     public Assembler DUP(int slot) {
         if (slot > 16)
             Utilities.fatalError("Assembler.PUSH: stack too deep");
+        if (slot < 1)
+            Utilities.fatalError("Assembler.DUP: stack underflow");
 
-        s.append(String.format("%02X", OpCode.DUP + slot - 1));
-        return this;
+        return OP(OpCode.DUP + slot - 1);
     }
 
     public Assembler SWAP(int slot) {
         if (slot > 16)
             Utilities.fatalError("Assembler.SWAP: stack too deep");
+        if (slot < 1)
+            Utilities.fatalError("Assembler.SWAP: stack underflow");
 
-        s.append(String.format("%02X", OpCode.SWAP + slot - 1));
-        return this;
+        return OP(OpCode.SWAP + slot - 1);
     }
 
     public Assembler CALLDATASIZE() {
@@ -171,6 +503,22 @@ public class Assembler {
         return OP(OpCode.EQ);
     }
 
+    public Assembler AND() {
+        return OP(OpCode.AND);
+    }
+
+    public Assembler OR() {
+        return OP(OpCode.OR);
+    }
+
+    public Assembler NOT() {
+        return OP(OpCode.NOT);
+    }
+
+    public Assembler BYTE() {
+        return OP(OpCode.BYTE);
+    }
+
     public Assembler REVERT() {
         return OP(OpCode.REVERT);
     }
@@ -199,8 +547,195 @@ public class Assembler {
         return OP(OpCode.SHR);
     }
 
+    public Assembler SHL() {
+        return OP(OpCode.SHL);
+    }
+
+    /** Decodes the code emitted so far into a list of instructions
+     * <p>
+     * Label references and labels are kept symbolic, so the list can be
+     * rewritten and handed back to setInstructions before linking.
+     * */
+    List<Instruction> getInstructions() {
+        var labelAt = new int[size + 1];
+        Arrays.fill(labelAt, -1);
+        for (int label = 0; label < this.label; label++) {
+            if (labels[label] != -1)
+                labelAt[labels[label]] = label;
+        }
+
+        var out = new ArrayList<Instruction>();
+        int offset = 0, fixup = 0;
+        while (true) {
+            while (fixup < fixups && fixupOffsets[fixup] == offset) {
+                out.add(new Instruction(Instruction.LABEL, fixupLabels[fixup], fixupWidths[fixup]));
+                fixup++;
+            }
+
+            if (offset == size)
+                break;
+
+            var opcode = code[offset] & 0xff;
+            if (opcode == OpCode.JUMPDEST)
+                out.add(new Instruction(opcode, labelAt[offset], 0));
+            else if (opcode > OpCode.PUSH && opcode <= OpCode.PUSH + 32)
+                out.add(new Instruction(opcode, offset + 1, opcode - OpCode.PUSH));
+            else
+                out.add(new Instruction(opcode));
+
+            offset += 1 + (opcode > OpCode.PUSH && opcode <= OpCode.PUSH + 32 ? opcode - OpCode.PUSH : 0);
+        }
+        return out;
+    }
+
+    /** Replaces the code emitted so far with a list from getInstructions
+     *
+     * @param instructions the instructions
+     * */
+    void setInstructions(List<Instruction> instructions) {
+        var old = code;
+        code = new byte[Math.max(size, 256)];
+        size = 0;
+        fixups = 0;
+        gas = 0;
+        Arrays.fill(labels, -1);
+
+        for (var instruction : instructions) {
+            if (instruction.opcode == Instruction.LABEL) {
+                addLabelRef(instruction.arg, instruction.width);
+                continue;
+            }
+
+            if (instruction.opcode == OpCode.JUMPDEST && instruction.arg != -1)
+                labels[instruction.arg] = size;
+
+            OP(instruction.opcode);
+            if (instruction.width != 0) {
+                ensureCapacity(instruction.width);
+                System.arraycopy(old, instruction.arg, code, size, instruction.width);
+                size += instruction.width;
+            }
+        }
+    }
+
+    /** Returns the code emitted so far as a fragment, unlinked
+     * <p>
+     * Labels from firstLabel on are the fragment's own. Labels below it belong to
+     * whatever the fragment will be appended to, so they may be referenced but not
+     * placed, and references to them are kept by name.
+     *
+     * @param firstLabel the first of the fragment's own labels
+     * @param names      the names of the labels below firstLabel
+     * */
+    Fragment getFragment(int firstLabel, Map<Integer, String> names) {
+        var fragment = new Fragment();
+        fragment.code = Arrays.copyOf(code, size);
+        fragment.gas = gas;
+        fragment.labels = Arrays.copyOfRange(labels, firstLabel, label);
+
+        for (int label = 0; label < firstLabel; label++) {
+            if (labels[label] != -1)
+                Utilities.fatalError("Assembler.getFragment: outside label placed in fragment");
+        }
+
+        var outside = new ArrayList<String>();
+        fragment.fixupOffsets = Arrays.copyOf(fixupOffsets, fixups);
+        fragment.fixupWidths = Arrays.copyOf(fixupWidths, fixups);
+        fragment.fixupLabels = new int[fixups];
+        for (int i = 0; i < fixups; i++) {
+            var label = fixupLabels[i];
+            if (label >= firstLabel) {
+                fragment.fixupLabels[i] = label - firstLabel;
+                continue;
+            }
+
+            var name = names.get(label);
+            if (name == null)
+                Utilities.fatalError("Assembler.getFragment: reference to an unnamed outside label");
+            if (!outside.contains(name))
+                outside.add(name);
+            fragment.fixupLabels[i] = -1 - outside.indexOf(name);
+        }
+        fragment.names = outside.toArray(new String[0]);
+        return fragment;
+    }
+
+    /** Appends a fragment, as if its code had been emitted here
+     * <p>
+     * The fragment's own labels get new labels, and the names of the outside
+     * labels it references are looked up in labels.
+     *
+     * @param fragment the fragment
+     * @param labels   the labels the fragment references by name
+     * */
+    void append(Fragment fragment, Map<String, Integer> labels) {
+        var first = label;
+        for (int i = 0; i < fragment.labels.length; i++) {
+            var label = getLabel();
+            if (fragment.labels[i] != -1)
+                this.labels[label] = size + fragment.labels[i];
+        }
+
+        var outside = new int[fragment.names.length];
+        for (int i = 0; i < outside.length; i++) {
+            var label = labels.get(fragment.names[i]);
+            if (label == null)
+                Utilities.fatalError("Assembler.append: unresolved reference to " + fragment.names[i]);
+            outside[i] = label;
+        }
+
+        for (int i = 0; i < fragment.fixupOffsets.length; i++) {
+            var label = fragment.fixupLabels[i];
+            addFixup(size + fragment.fixupOffsets[i], label >= 0 ? first + label : outside[-1 - label], fragment.fixupWidths[i]);
+        }
+
+        ensureCapacity(fragment.code.length);
+        System.arraycopy(fragment.code, 0, code, size, fragment.code.length);
+        size += fragment.code.length;
+        gas += fragment.gas;
+    }
+
+    /** Returns the number of references emitted so far to each label, indexed by label
+     * */
+    public int[] getReferences() {
+        var references = new int[label];
+        for (int i = 0; i < fixups; i++)
+            references[fixupLabels[i]]++;
+        return references;
+    }
+
+    /** Returns the number of bytes emitted so far, not counting label references
+     * */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the number of bytes emitted so far, counting label references
+     * as PUSH1, which is the narrowest they can be relaxed to
+     * */
+    public int getMinSize() {
+        return size + fixups * 2;
+    }
+
+    /** Returns the address of a label in the code returned last by get or getBytes,
+     * or -1 if the label was not placed
+     * */
+    public int getAddress(int label) {
+        return label < addresses.length ? addresses[label] : -1;
+    }
+
+    public byte[] getBytes() {
+        return link();
+    }
+
     public String get() {
-        resolveLabelRefs();
-        return s.toString();
+        var code = link();
+
+        var hex = new char[code.length * 2];
+        for (int i = 0; i < code.length; i++) {
+            hex[i * 2] = HEX[(code[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[code[i] & 0xf];
+        }
+        return new String(hex);
     }
 }
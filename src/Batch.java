@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/** Compiles many source files at once, each in a compilation of its own, on a fixed number of threads.
+ * <p>
+ * Arguments are source files and directories, whose .sol files are compiled, in any
+ * subdirectory too, together with "--jobs=N" and the options of the compile command,
+ * which apply to every file. Each file is reported as the compile command reports it,
+ * in the order given and directories in name order, however the compilations finish.
+ * <p>
+ * Output files are named after the contract, so only the first file, in that order, to
+ * compile a contract of a given name writes them, and any other one fails.
+ * */
+public class Batch {
+    // a compilation and how long it took
+    private static class Result {
+        public Path source;
+        public Compilation compilation;
+        public long millis;
+        public String crash;
+        public boolean prepared;
+    }
+
+    private List<Path> sources = new ArrayList<>();
+    private List<String> options = new ArrayList<>();
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) {
+        try {
+            var batch = new Batch();
+            batch.parseArgs(args);
+            System.exit(batch.run() ? 0 : 1);
+        } catch (CompilationError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (var arg : args) {
+            if (arg.startsWith("--jobs=")) {
+                try {
+                    jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs < 1)
+                    Utilities.fatalError("Option '--jobs' expects a positive number, got '" + arg.substring("--jobs=".length()) + "'");
+            } else if (arg.startsWith("--")) {
+                options.add(arg);
+            } else {
+                addSources(Path.of(arg));
+            }
+        }
+
+        if (sources.isEmpty())
+            Utilities.fatalError("Usage: batch [--jobs=N] [options] <source file or directory>...");
+    }
+
+    private void addSources(Path path) {
+        if (!Files.isDirectory(path)) {
+            sources.add(path);
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(path)) {
+            files.filter(x -> x.toString().endsWith(".sol")).sorted().forEach(sources::add);
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, path);
+        }
+    }
+
+    private Options getOptions(Path source) {
+        var args = new ArrayList<>(options);
+        args.add(0, source.toString());
+        return Options.parse(args.toArray(new String[0]));
+    }
+
+    private static Result compile(Path source, Options options) {
+        var result = new Result();
+        result.source = source;
+        result.compilation = new Compilation(options);
+
+        var start = System.nanoTime();
+        try {
+            result.prepared = result.compilation.prepare();
+        } catch (RuntimeException | StackOverflowError e) {
+            result.crash = "Compiler crashed: " + e;
+        }
+        result.millis = (System.nanoTime() - start) / 1_000_000;
+        return result;
+    }
+
+    // returns true if every file compiled
+    private boolean run() {
+        // options are checked once, up front, rather than failing every compilation
+        var parsed = new ArrayList<Options>();
+        for (var source : sources)
+            parsed.add(getOptions(source));
+
+        var start = System.nanoTime();
+        var failed = 0;
+
+        var pool = Executors.newFixedThreadPool(Math.min(jobs, sources.size()));
+        var futures = new ArrayList<Future<Result>>();
+        for (int i = 0; i < sources.size(); i++) {
+            var source = sources.get(i);
+            var options = parsed.get(i);
+            futures.add(pool.submit(() -> compile(source, options)));
+        }
+
+        // the files before a file have all compiled by the time it is written
+        var written = new HashMap<String, Path>();
+        for (var future : futures) {
+            var result = getResult(future);
+            if (result.prepared)
+                write(result, written);
+            if (!report(result))
+                failed++;
+        }
+        pool.shutdown();
+
+        var millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("Compiled %d of %d files in %d ms on %d threads, %.1f files/s%n", sources.size() - failed,
+                sources.size(), millis, Math.min(jobs, sources.size()), sources.size() * 1000.0 / Math.max(millis, 1));
+        return failed == 0;
+    }
+
+    private static Result getResult(Future<Result> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // writes the output files, unless a file before it wrote those of a contract with the same name
+    private static void write(Result result, HashMap<String, Path> written) {
+        var compilation = result.compilation;
+        var other = written.putIfAbsent(compilation.contractName, result.source);
+        if (other != null) {
+            compilation.error = "Contract '" + compilation.contractName + "' is also compiled from " + other
+                    + ", whose output files would be overwritten";
+            return;
+        }
+
+        var start = System.nanoTime();
+        try {
+            compilation.write();
+        } catch (RuntimeException e) {
+            result.crash = "Compiler crashed: " + e;
+        }
+        result.millis += (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // prints what the compile command would have, returns false if the file did not compile
+    private static boolean report(Result result) {
+        var compilation = result.compilation;
+        System.out.printf("== %s (%d ms)%n", result.source, result.millis);
+        System.out.print(compilation.output);
+
+        var error = result.crash != null ? result.crash : compilation.error;
+        if (error == null)
+            return true;
+
+        System.out.println(error);
+        return false;
+    }
+}
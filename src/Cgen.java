@@ -1,159 +1,806 @@
 import ast.*;
-import org.bouncycastle.jcajce.provider.digest.Keccak;
+import ast.visitor.BaseVisitor;
 import org.bouncycastle.util.encoders.Hex;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+class CallCounter extends BaseVisitor<Object, HashMap<Symbol, Integer>> {
+    @Override
+    public Object visit(DispatchNode node, HashMap<Symbol, Integer> calls) {
+        calls.merge(node.getName(), 1, Integer::sum);
+        return super.visit(node, calls);
+    }
+}
+
+class CallGraph {
+    private HashMap<Symbol, HashSet<Symbol>> callees = new HashMap<>();
+
+    // number of call sites of each method
+    private HashMap<Symbol, Integer> calls = new HashMap<>();
+
+    CallGraph(Collection<MethodNode> methods) {
+        for (var method : methods) {
+            var methodCalls = new HashMap<Symbol, Integer>();
+            method.accept(new CallCounter(), methodCalls);
+
+            callees.put(method.getName(), new HashSet<>(methodCalls.keySet()));
+            methodCalls.forEach((name, count) -> calls.merge(name, count, Integer::sum));
+        }
+    }
+
+    public Set<Symbol> getCallees(Symbol method) {
+        return callees.getOrDefault(method, new HashSet<>());
+    }
+
+    public int getCalls(Symbol method) {
+        return calls.getOrDefault(method, 0);
+    }
+
+    // returns the roots and every method they may call, directly or not
+    public Set<Symbol> getReachable(Collection<Symbol> roots) {
+        var visited = new HashSet<Symbol>();
+        var pending = new ArrayList<>(roots);
+
+        while (!pending.isEmpty()) {
+            var name = pending.remove(pending.size() - 1);
+            if (visited.add(name))
+                pending.addAll(getCallees(name));
+        }
+        return visited;
+    }
+}
+
+class DeadMethodReport {
+    public LinkedHashMap<MethodNode, Integer> removed = new LinkedHashMap<>();
+
+    public String toString() {
+        var out = new StringBuilder();
+        out.append(String.format("Dead methods: removed %d, saved %d bytes", removed.size(),
+                removed.values().stream().mapToInt(x -> x).sum()));
+
+        for (var entry : removed.entrySet())
+            out.append(String.format("%n  %s: %d bytes", entry.getKey().getName(), entry.getValue()));
+
+        return out.toString();
+    }
+}
+
+class ReturnCollector extends BaseVisitor<Object, List<ReturnNode>> {
+    @Override
+    public Object visit(ReturnNode node, List<ReturnNode> returns) {
+        returns.add(node);
+        return super.visit(node, returns);
+    }
+}
+
+// the most words a method's frame holds while its own code runs, visiting each expression with the
+// height before it and returning the height after it, as codegen without cached slots counts them.
+// Words pushed for a moment, such as masks, are counted, the code of the methods it calls is not
+class StackDepthCounter extends BaseVisitor<Integer, Integer> {
+    public int max;
+
+    private CgenStorage storage;
+    private HashMap<Symbol, MethodNode> methods;
+
+    StackDepthCounter(CgenStorage storage, HashMap<Symbol, MethodNode> methods) {
+        this.storage = storage;
+        this.methods = methods;
+    }
+
+    private int reach(int height) {
+        max = Math.max(max, height);
+        return height;
+    }
+
+    private boolean isPacked(Binding binding) {
+        return !binding.isVariable() && storage.getField(binding).packed;
+    }
+
+    @Override
+    public Integer visit(MethodNode node, Integer height) {
+        // the arguments and a return value slot, whether the method gets one or not
+        height = reach(node.getFormals().size() + (node.getReturn_type() != TreeConstants.void_ ? 1 : 0));
+        for (var expr : node.getExprs()) {
+            visit((Tree) expr, height);
+            if (expr instanceof DeclarationNode)
+                height++;
+        }
+
+        // a cached word and its slot, stored on exit
+        return reach(height + 2);
+    }
+
+    @Override
+    public Integer visit(DeclarationNode node, Integer height) {
+        return visit((Tree) node.getExpr(), height);
+    }
+
+    @Override
+    public Integer visit(AssignNode node, Integer height) {
+        // a packed field is merged into its slot word with a mask and a shift above both
+        var value = visit((Tree) node.getExpr(), height);
+        reach(value + (isPacked(node.getBinding()) ? 3 : 1));
+        return height;
+    }
+
+    @Override
+    public Integer visit(ReturnNode node, Integer height) {
+        return visit((Tree) node.getExpr(), height);
+    }
+
+    @Override
+    public Integer visit(DispatchNode node, Integer height) {
+        // cached words are stored and loaded around the call, the return address is pushed first
+        reach(height + 2);
+        var top = height + 1;
+        for (var actual : node.getActuals())
+            top = visit((Tree) actual, top);
+
+        var result = height + (methods.get(node.getName()).getReturn_type() != TreeConstants.void_ ? 1 : 0);
+        reach(result + 1);
+        return result;
+    }
+
+    @Override
+    public Integer visit(TernaryNode node, Integer height) {
+        reach(visit((Tree) node.getCond(), height) + 1);
+        visit((Tree) node.getE1(), height);
+        return visit((Tree) node.getE2(), height);
+    }
+
+    @Override
+    public Integer visit(BinopNode node, Integer height) {
+        var e2 = visit((Tree) node.getE2(), height);
+        visit((Tree) node.getE1(), e2);
+        return height + 1;
+    }
+
+    @Override
+    public Integer visit(UnopNode node, Integer height) {
+        return visit((Tree) node.getE1(), height);
+    }
+
+    @Override
+    public Integer visit(CastNode node, Integer height) {
+        return visit((Tree) node.getExpr(), height);
+    }
+
+    @Override
+    public Integer visit(ObjectNode node, Integer height) {
+        // a packed field is extracted with a mask or a shift above its slot word
+        reach(height + (isPacked(node.getBinding()) ? 2 : 1));
+        return height + 1;
+    }
+
+    @Override
+    public Integer visit(IntConstNode node, Integer height) {
+        return reach(height + 1);
+    }
+
+    @Override
+    public Integer visit(BoolConstNode node, Integer height) {
+        return reach(height + 1);
+    }
+
+    @Override
+    public Integer visit(NoExpressionNode node, Integer height) {
+        return height;
+    }
+}
+
+// writes a method's tree without its line numbers, collecting the calls in the order the code generator meets them
+class StructureWriter extends BaseVisitor<Object, StringBuilder> {
+    public List<DispatchNode> calls = new ArrayList<>();
+    public HashSet<Symbol> names = new HashSet<>();
+
+    @Override
+    public Object visit(MethodNode node, StringBuilder out) {
+        out.append(node.getName()).append(node.isPublic() ? " public " : " ").append(node.getReturn_type()).append(" (");
+        for (var formal : node.getFormals())
+            out.append(' ').append(formal.getName()).append(':').append(formal.getType_decl());
+        out.append(" )\n");
+
+        for (var expr : node.getExprs()) {
+            visit((Tree) expr, out);
+            out.append(";\n");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visit(DeclarationNode node, StringBuilder out) {
+        out.append("(decl ").append(node.getName()).append(':').append(node.getType_decl()).append(' ');
+        visit((Tree) node.getExpr(), out);
+        out.append(')');
+        return null;
+    }
+
+    @Override
+    public Object visit(AssignNode node, StringBuilder out) {
+        names.add(node.getName());
+        out.append("(= ").append(node.getName()).append(' ');
+        visit((Tree) node.getExpr(), out);
+        out.append(')');
+        return null;
+    }
+
+    @Override
+    public Object visit(ReturnNode node, StringBuilder out) {
+        out.append("(return ");
+        visit((Tree) node.getExpr(), out);
+        out.append(')');
+        return null;
+    }
+
+    @Override
+    public Object visit(TernaryNode node, StringBuilder out) {
+        out.append("(? ");
+        visit((Tree) node.getCond(), out);
+        out.append(' ');
+        visit((Tree) node.getE1(), out);
+        out.append(' ');
+        visit((Tree) node.getE2(), out);
+        out.append(')');
+        return null;
+    }
+
+    @Override
+    public Object visit(CastNode node, StringBuilder out) {
+        out.append("(cast ").append(node.getType_decl()).append(' ');
+        visit((Tree) node.getExpr(), out);
+        out.append(')');
+        return null;
+    }
+
+    // the callee is looked at before the arguments are generated
+    @Override
+    public Object visit(DispatchNode node, StringBuilder out) {
+        calls.add(node);
+        out.append("(call ").append(node.getName());
+        for (var actual : node.getActuals()) {
+            out.append(' ');
+            visit((Tree) actual, out);
+        }
+        out.append(')');
+        return null;
+    }
+
+    // the right operand is generated first
+    @Override
+    public Object visit(BinopNode node, StringBuilder out) {
+        out.append('(').append(node.getClass().getSimpleName()).append(' ');
+        visit((Tree) node.getE2(), out);
+        out.append(' ');
+        visit((Tree) node.getE1(), out);
+        out.append(')');
+        return null;
+    }
+
+    @Override
+    public Object visit(UnopNode node, StringBuilder out) {
+        out.append('(').append(node.getClass().getSimpleName()).append(' ');
+        visit((Tree) node.getE1(), out);
+        out.append(')');
+        return null;
+    }
+
+    @Override
+    public Object visit(IntConstNode node, StringBuilder out) {
+        out.append(node.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visit(BoolConstNode node, StringBuilder out) {
+        out.append(node.getVal());
+        return null;
+    }
+
+    @Override
+    public Object visit(ObjectNode node, StringBuilder out) {
+        names.add(node.getName());
+        out.append(node.getName());
+        return null;
+    }
+
+    @Override
+    public Object visit(NoExpressionNode node, StringBuilder out) {
+        out.append("()");
+        return null;
+    }
+}
 
 public class Cgen {
-    public static Assembler asm;
-    public static ContractNode contract;
-    public static HashMap<MethodNode, Integer> methodLabels;
-    public static HashMap<Symbol, MethodNode> methods;
-    public static ArrayList<Symbol> attributes;
+    // DUP16 and SWAP16 reach the 16 topmost words, every word of a frame has to stay within that
+    private static final int STACK_REACH = 16;
+
+    public Assembler asm;
+    public ContractNode contract;
+    public HashMap<MethodNode, Integer> methodLabels;
+    public HashMap<Symbol, MethodNode> methods;
+    public CgenStorage storage;
+    public CgenInliner inliner;
+    public DeadMethodReport deadMethods;
+    public DispatchReport dispatchReport;
+    public Peephole peephole;
 
-    public static String emit(ProgramNode program) {
+    // number of arguments of each method called through its JUMPDEST, by the address of the JUMPDEST
+    public HashMap<Integer, Integer> entries;
+
+    // fragments reused from the cache and generated, counting inlined bodies
+    public int reused;
+    public int generated;
+
+    private Options options;
+    private FragmentCache fragments;
+
+    // method labels by method name and the other way around, for fragments
+    private HashMap<String, Integer> labelsByName;
+    private HashMap<Integer, String> namesByLabel;
+
+    // fragment keys of outlined and inlined bodies
+    private HashMap<MethodNode, String> outlinedKeys;
+    private HashMap<MethodNode, String> inlinedKeys;
+    private HashMap<MethodNode, String> calleeKeys;
+
+    public Cgen(Options options) {
+        this(options, null);
+    }
+
+    /** Creates a code generator that reuses the code of methods generated before
+     *
+     * @param options   the options
+     * @param fragments the code of methods generated before, or null to generate every method
+     * */
+    public Cgen(Options options, FragmentCache fragments) {
+        this.options = options;
+        this.fragments = fragments;
+    }
+
+    public String emit(ProgramNode program) {
         asm = new Assembler();
         contract = program.getContract();
         methodLabels = new HashMap<>();
 
         populateFeatures();
-        emitDispatch();
+        dispatchReport = new CgenDispatch(this).emit(options);
+
+        // the dispatcher is optimized here, each method along with its fragment
+        peephole = null;
+        if (options.peephole) {
+            peephole = new Peephole();
+            if (fragments != null)
+                optimizeDispatcher();
+            else
+                peephole.run(asm);
+        }
+
         emitMethods();
+        var code = asm.get();
+
+        entries = new HashMap<>();
+        for (var method : methodLabels.entrySet()) {
+            var address = asm.getAddress(method.getValue());
+            if (address != -1)
+                entries.put(address, method.getKey().getFormals().size());
+        }
+        return code;
+    }
+
+    // the dispatcher is generated every time, but only optimized again if its code changed
+    private void optimizeDispatcher() {
+        var dispatcher = asm.getFragment(methodLabels.size(), namesByLabel);
+        var key = "dispatcher " + getHash(dispatcher);
+        var cached = fragments.get(key);
+        if (cached != null) {
+            dispatcher = cached;
+        } else {
+            optimize(dispatcher);
+            fragments.put(key, dispatcher);
+        }
 
-        return asm.get();
+        asm = newFragmentAssembler();
+        asm.append(dispatcher.optimized, labelsByName);
+        peephole.add(dispatcher.peephole);
     }
 
-    private static void populateFeatures() {
-        attributes = new ArrayList<>();
+    private void populateFeatures() {
+        storage = new CgenStorage(contract);
         methods = new HashMap<>();
+        labelsByName = new HashMap<>();
+        namesByLabel = new HashMap<>();
+        outlinedKeys = new HashMap<>();
+        inlinedKeys = new HashMap<>();
+        calleeKeys = new HashMap<>();
 
         for (var feature : contract.getFeatures()) {
-            if (feature instanceof AttributeNode attribute)
-                attributes.add(attribute.getName());
-            else if (feature instanceof MethodNode method) {
+            if (feature instanceof MethodNode method) {
+                var label = asm.getLabel();
                 methods.put(method.getName(), method);
-                methodLabels.put(method, asm.getLabel());
+                methodLabels.put(method, label);
+                labelsByName.put(method.getName().getName(), label);
+                namesByLabel.put(label, method.getName().getName());
             }
         }
     }
 
-    private static void emitDispatch() {
-        var revert = asm.getLabel();
-        var stop = asm.getLabel();
-
-        // revert if no function selector
-        asm.PUSH(1, 4);
-        asm.CALLDATASIZE();
-        asm.LT();
-        asm.JUMPI(revert);
+    private void emitMethods() {
+        // only methods the dispatcher can reach, directly or through calls, are emitted
+        var roots = new ArrayList<Symbol>();
+        for (var method : methods.values()) {
+            if (method.isPublic())
+                roots.add(method.getName());
+        }
 
-        // push function selector
-        asm.PUSH(1, 0);
-        asm.CALLDATALOAD();
-        asm.PUSH(1, 0xe0);
-        asm.SHR();
+        var reachable = new CallGraph(methods.values()).getReachable(roots);
 
-        // jump to selected method
+        var live = new ArrayList<MethodNode>();
+        var dead = new ArrayList<MethodNode>();
         for (var feature : contract.getFeatures()) {
-            if (feature instanceof MethodNode method && method.isPublic())
-                emitDispatchMethod(method, stop);
+            if (feature instanceof MethodNode method)
+                (reachable.contains(method.getName()) ? live : dead).add(method);
         }
 
-        // revert
-        asm.JUMPDEST(revert);
-        asm.PUSH(1, 0);
-        asm.DUP(1);
-        asm.REVERT();
+        // calls from dead methods do not count
+        var graph = new CallGraph(live);
+        inliner = new CgenInliner(this, options, methods, graph);
 
-        // stop
-        asm.JUMPDEST(stop);
-        asm.STOP();
-    }
+        deadMethods = new DeadMethodReport();
+        for (var method : dead)
+            deadMethods.removed.put(method, measure(method));
+
+        // methods inlined at every call site only need a body if the dispatcher calls them
+        var order = new ArrayList<MethodNode>();
+        for (var method : live) {
+            if (inliner.isEmitted(method))
+                order.add(method);
+        }
 
-    private static void emitDispatchMethod(MethodNode method, int stop) {
-        var types = method.getFormals().stream().map(x -> x.getType_decl().toString()).toList();
-        var signature = method.getName().toString() + "(" + String.join(",", types) + ") packed";
+        // the most referenced methods go first so their labels fit the narrowest PUSH,
+        // public methods are also referenced once by the dispatcher
+        order.sort(Comparator.comparingInt(x -> -graph.getCalls(x.getName()) - (x.isPublic() ? 1 : 0)));
 
-        var hash = new Keccak.Digest256().digest(signature.getBytes());
-        var selector = Hex.toHexString(hash).substring(0, 8);
+        var bodies = new ArrayList<Fragment>();
+        for (var method : order) {
+            var body = getFragment(method, false);
+            if (peephole != null) {
+                peephole.add(body.peephole);
+                body = body.optimized;
+            }
+            bodies.add(body);
+        }
 
-        var next = asm.getLabel();
-        var body = methodLabels.get(method);
+        // whether a method is entered by falling through from the one before it
+        var fallsThrough = new boolean[order.size()];
+        if (peephole != null)
+            optimizeBoundaries(order, bodies, fallsThrough);
 
-        asm.DUP(1);
-        asm.PUSH(4, selector);
-        asm.EQ();
-        asm.ISZERO();
-        asm.JUMPI(next);
+        // a method nobody calls after its callers were optimized loses its JUMPDEST
+        var referenced = new HashSet<String>();
+        var references = asm.getReferences();
+        for (var method : order) {
+            if (references[methodLabels.get(method)] > 0)
+                referenced.add(method.getName().getName());
+        }
+        for (var body : bodies)
+            referenced.addAll(body.getReferences());
 
-        asm.PUSH(stop);
-        emitPushArgs(method.getFormals());
-        asm.JUMP(body);
+        var unreachable = false;
+        for (int i = 0; i < order.size(); i++) {
+            var label = methodLabels.get(order.get(i));
+            if (peephole == null || referenced.contains(order.get(i).getName().getName())) {
+                asm.JUMPDEST(label);
+            } else {
+                peephole.record("dead-jumpdest", List.of(new Instruction(OpCode.JUMPDEST)), List.of());
+                unreachable |= !fallsThrough[i];
+            }
+            asm.append(bodies.get(i), labelsByName);
+        }
 
-        asm.JUMPDEST(next);
+        // the body of a dead method that is not fallen into is unreachable, which
+        // only the optimizer running over all of the code removes
+        if (unreachable)
+            peephole.run(asm);
     }
 
-    private static void emitPushArgs(List<FormalNode> formals) {
-        int offset = 4; // skip function selector
-        for (var formal : formals) {
-            var size = switch (formal.getType_decl().toString()) {
-                case "bool" -> 1;
-                case "uint8" -> 1;
-                case "uint16" -> 2;
-                case "uint32" -> 4;
-                case "uint64" -> 8;
-                case "uint128" -> 16;
-                case "uint256" -> 32;
-                default -> 0;
-            };
+    /** Applies the rewrites the peephole optimizer misses by optimizing each method on its own
+     * <p>
+     * The only window it misses that can match is a tail call ending a method, to the method
+     * emitted right after it. Methods end with a POP before such a call, or with no frame at
+     * all, and no rule matches a window starting with a POP or spanning a JUMPDEST, so removing
+     * the jump exposes nothing else.
+     * */
+    private void optimizeBoundaries(List<MethodNode> order, List<Fragment> bodies, boolean[] fallsThrough) {
+        for (int i = 0; i + 1 < order.size(); i++) {
+            if (order.get(i + 1).getName().getName().equals(bodies.get(i).getTailJump())) {
+                bodies.set(i, bodies.get(i).dropTailJump());
+                fallsThrough[i + 1] = true;
+                peephole.record("jump-next", List.of(new Instruction(Instruction.LABEL), new Instruction(OpCode.JUMP),
+                        new Instruction(OpCode.JUMPDEST)), List.of(new Instruction(OpCode.JUMPDEST)));
+            }
+        }
+    }
 
-            if (size == 0)
-                Utilities.fatalError("Cgen.emitPushArgs: unknown type " + formal.getType_decl());
+    // returns the number of bytes a method would take, by emitting it into a scratch assembler
+    private int measure(MethodNode method) {
+        var out = asm;
+        asm = new Assembler();
 
-            asm.PUSH(4, offset);
-            asm.CALLDATALOAD();
+        // the method's label belongs to the real assembler
+        asm.OP(OpCode.JUMPDEST);
+        emitBody(method, false);
+        var size = asm.getMinSize();
+        asm = out;
+        return size;
+    }
 
-            if (size < 32) {
-                asm.PUSH(1, (32 - size) * 8);
-                asm.SHR();
+    /** Emits a method's frame setup, body and cleanup, reusing the code generated for it before if it can.
+     * <p>
+     * See generateBody.
+     *
+     * @param method the method
+     * @param inline true if the body is inlined, so there is no return address
+     * */
+    void emitBody(MethodNode method, boolean inline) {
+        if (fragments == null) {
+            generateBody(method, inline);
+            return;
+        }
+        asm.append(getFragment(method, inline), labelsByName);
+    }
+
+    // an outlined body is optimized along with it, if the peephole optimizer is on
+    private Fragment getFragment(MethodNode method, boolean inline) {
+        String key = null;
+        if (fragments != null) {
+            key = getKey(method, inline);
+            var fragment = fragments.get(key);
+            if (fragment != null) {
+                reused++;
+                return fragment;
             }
+        }
+
+        var out = asm;
+        asm = newFragmentAssembler();
+        generateBody(method, inline);
+        var fragment = asm.getFragment(methodLabels.size(), namesByLabel);
+        asm = out;
 
-            offset += size;
+        if (!inline && options.peephole)
+            optimize(fragment);
+
+        if (fragments != null)
+            fragments.put(key, fragment);
+        generated++;
+        return fragment;
+    }
+
+    private void optimize(Fragment fragment) {
+        var optimizer = newFragmentAssembler();
+        optimizer.append(fragment, labelsByName);
+        fragment.peephole = new Peephole();
+        fragment.peephole.run(optimizer);
+        fragment.optimized = optimizer.getFragment(methodLabels.size(), namesByLabel);
+    }
+
+    // method labels are the first ones, so a fragment refers to them by the same numbers
+    private Assembler newFragmentAssembler() {
+        var asm = new Assembler();
+        for (int i = 0; i < methodLabels.size(); i++)
+            asm.getLabel();
+        return asm;
+    }
+
+    /** Returns the key of the code of a method's body
+     * <p>
+     * The code of a body depends on its tree, the options, the storage fields of the
+     * attributes it names, and on each method it calls: its arguments, its return type,
+     * the slots it may read or write, whether it is inlined and if so, its own key.
+     * Labels are referred to by method name, so the key does not depend on where the
+     * body ends up in the contract.
+     * <p>
+     * Looking at the callees in the order the code generator meets them makes the
+     * inliner decide them in the same order, so its report does not change either.
+     * */
+    private String getKey(MethodNode method, boolean inline) {
+        var keys = inline ? inlinedKeys : outlinedKeys;
+        var key = keys.get(method);
+        if (key != null)
+            return key;
+
+        var text = new StringBuilder();
+        text.append(inline ? "inlined " : "outlined ").append(options.getCodeKey()).append('\n');
+
+        var writer = new StructureWriter();
+        method.accept(writer, text);
+
+        var names = new ArrayList<>(writer.names);
+        names.sort(Comparator.comparing(Symbol::getName));
+        for (var name : names) {
+            var field = storage.getField(name);
+            if (field != null)
+                text.append("field ").append(name).append(' ').append(field.type).append(' ').append(field.slot).append(' ')
+                        .append(field.offset).append(' ').append(field.size).append(' ').append(field.packed).append('\n');
+        }
+
+        for (var call : writer.calls) {
+            var callee = methods.get(call.getName());
+            text.append(getCalleeKey(callee));
+            if (inliner.isInlined(callee))
+                text.append(" inlined ").append(getKey(callee, true));
+            text.append('\n');
         }
+
+        key = getHash(text.toString());
+        keys.put(method, key);
+        return key;
     }
 
-    private static void emitMethods() {
-        for (var feature : contract.getFeatures()) {
-            if (feature instanceof MethodNode method)
-                emitMethod(method);
+    private String getCalleeKey(MethodNode callee) {
+        return calleeKeys.computeIfAbsent(callee, x -> "callee " + x.getName() + " " + x.getReturn_type() + " "
+                + x.getFormals().size() + " " + new TreeSet<>(storage.getTouchedSlots(x.getName())) + " "
+                + new TreeSet<>(storage.getWrittenSlots(x.getName())));
+    }
+
+    private static String getHash(Fragment fragment) {
+        var buffer = ByteBuffer.allocate(fragment.code.length + 4 * (fragment.labels.length + 3 * fragment.fixupOffsets.length + 4));
+        buffer.put(fragment.code).putInt(fragment.labels.length).putInt(fragment.fixupOffsets.length);
+        for (var label : fragment.labels)
+            buffer.putInt(label);
+        for (int i = 0; i < fragment.fixupOffsets.length; i++)
+            buffer.putInt(fragment.fixupOffsets[i]).putInt(fragment.fixupLabels[i]).putInt(fragment.fixupWidths[i]);
+        return getHash(buffer.array()) + " " + String.join(" ", fragment.names);
+    }
+
+    private static String getHash(String text) {
+        return getHash(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String getHash(byte[] bytes) {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
         }
     }
 
-    private static void emitMethod(MethodNode method) {
-        var label = methodLabels.get(method);
-        asm.JUMPDEST(label);
+    /** Generates a method's frame setup, body and cleanup.
+     * <p>
+     * Expects the arguments on the stack, above the return address unless the body
+     * is being inlined at a call site. Leaves the return value, if any, in place of
+     * the arguments and jumps to the return address.
+     * <p>
+     * Locals live where their initializer left its value. The return value is left on
+     * top by a return that is the last expression of the method, every other method
+     * that returns a value gets a slot for it instead. A last {@code return f(x)}
+     * replaces the frame with the arguments of f and jumps to it, so f returns
+     * straight to our caller.
+     *
+     * @param method the method
+     * @param inline true if the body is inlined, so there is no return address
+     * */
+    private void generateBody(MethodNode method, boolean inline) {
+        var env = new CgenEnv(this, method);
+        var exprVisitor = new CgenExprVisitor(this);
+        var exprs = method.getExprs();
+        var last = exprs.isEmpty() ? null : exprs.get(exprs.size() - 1);
 
-        var locals = new ArrayList<Symbol>();
-        for (var expr : method.getExprs()) {
-            if (expr instanceof DeclarationNode decl) {
-                locals.add(0, decl.getName());
-                asm.PUSH(1, 0);
-            }
+        var cached = new ArrayList<Integer>();
+        var counter = new SlotAccessCounter(storage);
+        var depth = new StackDepthCounter(storage, methods);
+        if (options.storageCache) {
+            method.accept(counter, false);
+            method.accept(depth, 0);
         }
 
-        var exprVisitor = new CgenExprVisitor();
-        var env = new CgenEnv(method, locals);
+        // a cached slot is loaded at most once and stored at most once, on exit, and
+        // each one deepens the frame below everything but the arguments
+        var slots = new TreeSet<Integer>(counter.reads.keySet());
+        slots.addAll(counter.writes.keySet());
+        for (var slot : slots) {
+            if (counter.isWorthCaching(slot) && depth.max + cached.size() < STACK_REACH)
+                cached.add(slot);
+        }
+
+        for (var slot : cached) {
+            if (counter.loads.contains(slot)) {
+                asm.PUSH(slot);
+                asm.SLOAD();
+            } else
+                asm.PUSH(0);
+            env.cacheSlot(slot);
+        }
 
-        for (var expr : method.getExprs())
+        var returns = new ArrayList<ReturnNode>();
+        method.accept(new ReturnCollector(), returns);
+
+        var value = method.getReturn_type() != TreeConstants.void_;
+        var onTop = value && returns.size() == 1 && last == returns.get(0);
+        if (value && !onTop) {
+            asm.PUSH(0);
+            env.allocateReturn();
+        }
+
+        for (var expr : exprs) {
+            if (expr == last && onTop && !inline && emitTailCall((ReturnNode) expr, env, exprVisitor))
+                return;
+
+            var height = env.getHeight();
             expr.accept(exprVisitor, env);
 
-        // return exprs need to jump to this epilogue
-        // stack must be return val, return address, args, locals
-        for (int i = 0; i < method.getFormals().size() + locals.size() + env.getDelta(); i++)
+            // drop whatever a statement leaves behind, except a new local or the return value
+            if (expr instanceof DeclarationNode || (expr == last && onTop))
+                height++;
+
+            for (; env.getHeight() > height; env.pop())
+                asm.POP();
+        }
+
+        env.flushCache();
+
+        if (value) {
+            if (!onTop)
+                env.loadReturn();
+
+            // move the return value to the bottom of the frame and drop the rest
+            var frame = env.getHeight() - 1;
+            if (frame > 0) {
+                asm.SWAP(frame);
+                for (int i = 0; i < frame; i++)
+                    asm.POP();
+            }
+
+            if (!inline)
+                asm.SWAP(1);
+        } else {
+            for (; env.getHeight() > 0; env.pop())
+                asm.POP();
+        }
+
+        if (!inline)
+            asm.JUMP();
+    }
+
+    // returns false, having emitted nothing, if the return is not a call that can replace the frame
+    private boolean emitTailCall(ReturnNode node, CgenEnv env, CgenExprVisitor exprVisitor) {
+        if (!(node.getExpr() instanceof DispatchNode call))
+            return false;
+
+        var callee = methods.get(call.getName());
+        var frame = env.getHeight();
+        var args = call.getActuals().size();
+
+        // each argument is swapped into the frame, which has to be big enough and within reach
+        if (inliner.isInlined(callee) || frame < args || frame > STACK_REACH)
+            return false;
+
+        // the callee reads storage, and this frame is about to go away
+        env.flushCache();
+
+        for (var actual : call.getActuals())
+            actual.accept(exprVisitor, env);
+
+        for (int i = 0; i < args; i++) {
+            asm.SWAP(frame);
+            asm.POP();
+        }
+        for (int i = args; i < frame; i++)
             asm.POP();
 
-        asm.JUMP();
+        asm.JUMP(methodLabels.get(callee));
+        return true;
     }
 }
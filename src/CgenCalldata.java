@@ -0,0 +1,163 @@
+import ast.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+class CalldataField {
+    public FormalNode formal;
+
+    // in bytes from the start of calldata
+    public int offset;
+    public int size;
+
+    // index of the batched word the field is extracted from, -1 if it is loaded by itself
+    public int word = -1;
+
+    CalldataField(FormalNode formal, int offset, int size) {
+        this.formal = formal;
+        this.offset = offset;
+        this.size = size;
+    }
+}
+
+/** Decodes the packed arguments of a public method onto the stack.
+ * <p>
+ * A field can be loaded by itself, or extracted from a 32-byte calldata word that is
+ * loaded once and shared with the fields next to it. Extracting costs as much as a
+ * load when the field has to be both shifted and masked, so a word is only loaded if
+ * enough of its fields sit at either end of it or are a single byte wide. Fields
+ * that do not fit in the word of the fields before them start a word of their own.
+ * <p>
+ * Words are pushed before the return address and stay below the frame of the method,
+ * where the STOP it returns to discards them.
+ * */
+public class CgenCalldata {
+    // PUSH offset, CALLDATALOAD
+    private static final int LOAD_GAS = 6;
+
+    // PUSH shift, SHR
+    private static final int SHIFT_GAS = 6;
+
+    // DUP, PUSH position, BYTE (or SHR, or AND)
+    private static final int EXTRACT_GAS = 9;
+
+    // DUP can only reach this far down
+    private static final int MAX_DEPTH = 16;
+
+    private List<CalldataField> fields = new ArrayList<>();
+    private List<Integer> words = new ArrayList<>();
+
+    public CgenCalldata(List<FormalNode> formals, boolean batch) {
+        var offset = 4; // skip function selector
+        for (var formal : formals) {
+            var size = CgenStorage.getSize(formal.getType_decl());
+            if (size == 0)
+                Utilities.fatalError("CgenCalldata: unknown type " + formal.getType_decl());
+
+            fields.add(new CalldataField(formal, offset, size));
+            offset += size;
+        }
+
+        if (batch)
+            plan();
+    }
+
+    // gas of loading the field by itself
+    private static int getLoadGas(CalldataField field) {
+        return LOAD_GAS + (field.size < 32 ? SHIFT_GAS : 0);
+    }
+
+    // gas of extracting the field from the word starting at start, or -1 if it is not cheaper than a load
+    private static int getExtractGas(CalldataField field, int start) {
+        var position = field.offset - start;
+        if (field.size == 32 || position + field.size > 32)
+            return -1;
+        if (field.size == 1 || position == 0 || position + field.size == 32)
+            return EXTRACT_GAS;
+        return -1;
+    }
+
+    // greedily starts a word at the first field not decoded yet, keeping it if it saves gas
+    private void plan() {
+        var i = 0;
+        while (i < fields.size()) {
+            var start = fields.get(i).offset;
+
+            var end = i;
+            var saved = -LOAD_GAS;
+            while (end < fields.size() && fields.get(end).offset + fields.get(end).size <= start + 32) {
+                var gas = getExtractGas(fields.get(end), start);
+                if (gas != -1)
+                    saved += getLoadGas(fields.get(end)) - gas;
+                end++;
+            }
+
+            if (saved <= 0) {
+                i++;
+                continue;
+            }
+
+            for (var field : fields.subList(i, end)) {
+                if (getExtractGas(field, start) != -1)
+                    field.word = words.size();
+            }
+            words.add(start);
+            i = end;
+        }
+    }
+
+    /** Returns the gas of loading every field by itself, as done without batching
+     * */
+    public int getUnbatchedGas() {
+        return fields.stream().mapToInt(CgenCalldata::getLoadGas).sum();
+    }
+
+    /** Emits the words shared by several fields, before the return address is pushed
+     * */
+    public void emitWords(Assembler asm) {
+        for (var start : words) {
+            asm.PUSH(start);
+            asm.CALLDATALOAD();
+        }
+    }
+
+    /** Emits the arguments in order, the last one on top, right after the return address
+     * */
+    public void emitArgs(Assembler asm) {
+        for (int i = 0; i < fields.size(); i++) {
+            var field = fields.get(i);
+
+            // the word is below the later words, the return address and the arguments pushed so far
+            var depth = words.size() - field.word + 1 + i;
+            if (field.word == -1 || depth > MAX_DEPTH) {
+                emitLoad(asm, field);
+                continue;
+            }
+
+            var position = field.offset - words.get(field.word);
+            asm.DUP(depth);
+
+            if (field.size == 1) {
+                asm.PUSH(position);
+                asm.BYTE();
+            } else if (position == 0) {
+                asm.PUSH((32 - field.size) * 8);
+                asm.SHR();
+            } else {
+                asm.PUSH(BigInteger.ONE.shiftLeft(field.size * 8).subtract(BigInteger.ONE));
+                asm.AND();
+            }
+        }
+    }
+
+    private static void emitLoad(Assembler asm, CalldataField field) {
+        asm.PUSH(field.offset);
+        asm.CALLDATALOAD();
+
+        if (field.size < 32) {
+            asm.PUSH((32 - field.size) * 8);
+            asm.SHR();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+import ast.*;
+import org.bouncycastle.jcajce.provider.digest.Keccak;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+class DispatchCase {
+    public MethodNode method;
+    public String selector;
+    public long value;
+    public int gas;
+
+    // calls recorded in the profile, zero without one
+    public long count;
+
+    // gas spent decoding the arguments, and what loading each one by itself would cost
+    public int decodeGas;
+    public int unbatchedGas;
+
+    DispatchCase(MethodNode method, String selector) {
+        this.method = method;
+        this.selector = selector;
+        this.value = Long.parseLong(selector, 16);
+    }
+}
+
+// call counts keyed by method name or by selector, read from the --profile file
+class DispatchProfile {
+    private static final Pattern JSON_ENTRY = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(\\d+)");
+
+    public HashMap<String, Long> counts = new HashMap<>();
+
+    /** Reads a profile, either a JSON object or one "name count" pair per line
+     * <p>
+     * Names are method names or selectors, with or without a leading "0x" and in either case.
+     * In the text format, anything after a '#' is a comment.
+     * */
+    public static DispatchProfile read(String path) {
+        var profile = new DispatchProfile();
+
+        String text = null;
+        try {
+            text = Files.readString(Path.of(path));
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, path);
+        }
+
+        if (text.strip().startsWith("{")) {
+            var matcher = JSON_ENTRY.matcher(text);
+            while (matcher.find())
+                profile.add(path, matcher.group(1), matcher.group(2));
+            return profile;
+        }
+
+        for (var line : text.split("\n")) {
+            var comment = line.indexOf('#');
+            var fields = (comment == -1 ? line : line.substring(0, comment)).trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty())
+                continue;
+            if (fields.length != 2)
+                Utilities.fatalError(path + ": expected a method name or selector and a count, got '" + line.trim() + "'");
+            profile.add(path, fields[0], fields[1]);
+        }
+        return profile;
+    }
+
+    private void add(String path, String name, String count) {
+        try {
+            counts.merge(name.regionMatches(true, 0, "0x", 0, 2) ? name.substring(2) : name, Long.parseLong(count), Long::sum);
+        } catch (NumberFormatException e) {
+            Utilities.fatalError(path + ": invalid count '" + count + "' for '" + name + "'");
+        }
+    }
+
+    public void apply(List<DispatchCase> cases) {
+        var names = new HashSet<String>();
+        var selectors = new HashMap<String, DispatchCase>();
+        for (var entry : cases) {
+            var name = entry.method.getName().toString();
+            entry.count = counts.getOrDefault(name, 0L);
+            names.add(name);
+            selectors.put(entry.selector, entry);
+        }
+
+        // method names match exactly, selectors whatever the case of their hex digits
+        for (var count : counts.entrySet()) {
+            var entry = selectors.get(count.getKey().toLowerCase());
+            if (entry != null)
+                entry.count += count.getValue();
+            else if (!names.contains(count.getKey()))
+                Utilities.fatalError("Profile: no public method or selector '" + count.getKey() + "'");
+        }
+    }
+}
+
+class DispatchReport {
+    public Options.Dispatch strategy;
+    public List<DispatchCase> cases;
+    public boolean profiled;
+
+    DispatchReport(Options.Dispatch strategy, List<DispatchCase> cases, boolean profiled) {
+        this.strategy = strategy;
+        this.cases = cases;
+        this.profiled = profiled;
+    }
+
+    public int getWorstGas() {
+        return cases.stream().mapToInt(x -> x.gas).max().orElse(0);
+    }
+
+    public double getAverageGas() {
+        return cases.stream().mapToInt(x -> x.gas).average().orElse(0);
+    }
+
+    // average weighted by the profiled call counts, or the plain average if nothing was called
+    public double getExpectedGas() {
+        var calls = cases.stream().mapToLong(x -> x.count).sum();
+        if (calls == 0)
+            return getAverageGas();
+        return (double) cases.stream().mapToLong(x -> x.count * x.gas).sum() / calls;
+    }
+
+    public int getDecodeGas() {
+        return cases.stream().mapToInt(x -> x.decodeGas).sum();
+    }
+
+    public int getUnbatchedGas() {
+        return cases.stream().mapToInt(x -> x.unbatchedGas).sum();
+    }
+
+    public String toString() {
+        var out = new StringBuilder();
+        out.append(String.format("Dispatch (%s): %d public methods, worst %d gas, average %.1f gas",
+                strategy.name().toLowerCase(), cases.size(), getWorstGas(), getAverageGas()));
+        if (profiled)
+            out.append(String.format(", expected %.1f gas under the profile", getExpectedGas()));
+
+        out.append(String.format("%nCalldata decoding: %d gas, %d gas unbatched", getDecodeGas(), getUnbatchedGas()));
+
+        for (var entry : cases)
+            out.append(String.format("%n  0x%s %s: %d gas, decoding %d gas (%d unbatched)%s", entry.selector,
+                    entry.method.getName(), entry.gas, entry.decodeGas, entry.unbatchedGas,
+                    profiled ? String.format(", %d calls", entry.count) : ""));
+
+        return out.toString();
+    }
+}
+
+/** Emits the function selector dispatcher at the start of the runtime code.
+ * <p>
+ * The gas recorded for each case is the static gas spent from the start of the
+ * runtime code until its selector has been matched, i.e. before arguments are decoded.
+ * <p>
+ * Given a --profile of call counts, linear chains test the most called selectors first,
+ * binary search splits the selectors into halves of equal call counts rather than equal
+ * size, and auto picks the strategy with the lowest expected gas under the profile.
+ * */
+public class CgenDispatch {
+    // binary search subtrees at most this big are matched with a linear chain instead
+    private static final int MAX_LEAF = 3;
+
+    // auto only picks a jump table once there are enough selectors to pay for its fixed cost
+    private static final int MIN_TABLE = 8;
+    private static final int MAX_BUCKET = 2;
+
+    // size of a jump table entry: JUMPDEST, PUSH2 label, JUMP
+    private static final int TABLE_STRIDE = 5;
+
+    private Cgen cgen;
+    private int revert;
+    private int stop;
+    private boolean batchCalldata;
+
+    public CgenDispatch(Cgen cgen) {
+        this.cgen = cgen;
+    }
+
+    public DispatchReport emit(Options options) {
+        var cases = new ArrayList<DispatchCase>();
+        for (var feature : cgen.contract.getFeatures()) {
+            if (feature instanceof MethodNode method && method.isPublic())
+                cases.add(new DispatchCase(method, getSelector(method)));
+        }
+
+        batchCalldata = options.batchCalldata;
+
+        var profile = options.profile != null ? DispatchProfile.read(options.profile) : null;
+        if (profile != null)
+            profile.apply(cases);
+
+        var strategy = options.dispatch;
+        if (strategy == Options.Dispatch.AUTO)
+            strategy = profile != null ? chooseProfiledStrategy(cases) : chooseStrategy(cases);
+
+        emitDispatcher(strategy, cases);
+        return new DispatchReport(strategy, cases, profile != null);
+    }
+
+    // emits every strategy into a scratch assembler and keeps the cheapest under the profile
+    private Options.Dispatch chooseProfiledStrategy(List<DispatchCase> cases) {
+        var asm = cgen.asm;
+
+        Options.Dispatch best = null;
+        var bestGas = 0.0;
+        for (var strategy : List.of(Options.Dispatch.LINEAR, Options.Dispatch.BINARY, Options.Dispatch.TABLE)) {
+            cgen.asm = new Assembler();
+            emitDispatcher(strategy, cases);
+
+            var gas = new DispatchReport(strategy, cases, true).getExpectedGas();
+            if (best == null || gas < bestGas) {
+                best = strategy;
+                bestGas = gas;
+            }
+        }
+
+        cgen.asm = asm;
+        return best;
+    }
+
+    private void emitDispatcher(Options.Dispatch strategy, List<DispatchCase> cases) {
+        revert = cgen.asm.getLabel();
+        stop = cgen.asm.getLabel();
+
+        var start = cgen.asm.getGas();
+
+        // revert if no function selector
+        cgen.asm.PUSH(4);
+        cgen.asm.CALLDATASIZE();
+        cgen.asm.LT();
+        cgen.asm.JUMPI(revert);
+
+        // push function selector
+        cgen.asm.PUSH(0);
+        cgen.asm.CALLDATALOAD();
+        cgen.asm.PUSH(0xe0);
+        cgen.asm.SHR();
+
+        var gas = cgen.asm.getGas() - start;
+
+        // jump to selected method
+        switch (strategy) {
+            case LINEAR -> emitLinear(cases, gas);
+            case BINARY -> {
+                var sorted = new ArrayList<>(cases);
+                sorted.sort(Comparator.comparingLong(x -> x.value));
+                emitBinary(sorted, gas);
+            }
+            case TABLE -> emitTable(cases, gas);
+        }
+
+        // revert
+        cgen.asm.JUMPDEST(revert);
+        cgen.asm.PUSH(0);
+        cgen.asm.DUP(1);
+        cgen.asm.REVERT();
+
+        // stop
+        cgen.asm.JUMPDEST(stop);
+        cgen.asm.STOP();
+    }
+
+    public static String getSelector(MethodNode method) {
+        var types = method.getFormals().stream().map(x -> x.getType_decl().toString()).toList();
+        var signature = method.getName().toString() + "(" + String.join(",", types) + ") packed";
+
+        var hash = new Keccak.Digest256().digest(signature.getBytes());
+        return Hex.toHexString(hash).substring(0, 8);
+    }
+
+    private Options.Dispatch chooseStrategy(List<DispatchCase> cases) {
+        if (cases.size() <= MAX_LEAF)
+            return Options.Dispatch.LINEAR;
+
+        if (cases.size() >= MIN_TABLE && getBucketSize(cases, getBuckets(cases)) <= MAX_BUCKET)
+            return Options.Dispatch.TABLE;
+
+        return Options.Dispatch.BINARY;
+    }
+
+    // falls through to the code after the chain if no selector matched
+    private void emitLinear(List<DispatchCase> cases, int gas) {
+        var ordered = new ArrayList<>(cases);
+        ordered.sort(Comparator.comparingLong(x -> -x.count));
+
+        for (var entry : ordered)
+            gas = emitCase(entry, gas);
+    }
+
+    private void emitBinary(List<DispatchCase> sorted, int gas) {
+        if (sorted.size() <= MAX_LEAF) {
+            emitLinear(sorted, gas);
+            cgen.asm.JUMP(revert);
+            return;
+        }
+
+        var mid = getPivot(sorted);
+        var left = cgen.asm.getLabel();
+        var start = cgen.asm.getGas();
+
+        // jump left if selector < pivot
+        cgen.asm.DUP(1);
+        cgen.asm.PUSH(sorted.get(mid).value);
+        cgen.asm.GT();
+        cgen.asm.JUMPI(left);
+
+        gas += cgen.asm.getGas() - start;
+        emitBinary(sorted.subList(mid, sorted.size()), gas);
+
+        cgen.asm.JUMPDEST(left);
+        emitBinary(sorted.subList(0, mid), gas + OpCode.gas(OpCode.JUMPDEST));
+    }
+
+    // splits into halves with equal call counts, or equal sizes without a profile
+    private int getPivot(List<DispatchCase> sorted) {
+        var total = sorted.stream().mapToLong(x -> x.count).sum();
+        var half = sorted.size() / 2;
+
+        var best = half;
+        var bestDiff = Long.MAX_VALUE;
+        var left = 0L;
+        for (int mid = 1; mid < sorted.size(); mid++) {
+            left += sorted.get(mid - 1).count;
+            var diff = Math.abs(total - 2 * left);
+            if (diff < bestDiff || diff == bestDiff && Math.abs(mid - half) < Math.abs(best - half)) {
+                best = mid;
+                bestDiff = diff;
+            }
+        }
+        return best;
+    }
+
+    private void emitTable(List<DispatchCase> cases, int gas) {
+        var buckets = getBuckets(cases);
+        var table = cgen.asm.getLabel();
+        var start = cgen.asm.getGas();
+
+        // jump to table + (selector & (buckets - 1)) * TABLE_STRIDE
+        cgen.asm.DUP(1);
+        cgen.asm.PUSH(buckets - 1);
+        cgen.asm.AND();
+        cgen.asm.PUSH(TABLE_STRIDE);
+        cgen.asm.MUL();
+        cgen.asm.PUSHLABEL(table);
+        cgen.asm.ADD();
+        cgen.asm.JUMP();
+
+        gas += cgen.asm.getGas() - start;
+        start = cgen.asm.getGas();
+
+        // each entry jumps on to the chain for its bucket
+        var labels = new int[buckets];
+        for (int i = 0; i < buckets; i++) {
+            labels[i] = getBucket(cases, buckets, i).isEmpty() ? revert : cgen.asm.getLabel();
+
+            if (i == 0)
+                cgen.asm.JUMPDEST(table);
+            else
+                cgen.asm.OP(OpCode.JUMPDEST);
+
+            cgen.asm.PUSHLABEL(labels[i], 2);
+            cgen.asm.JUMP();
+        }
+
+        // only one entry is executed
+        gas += (cgen.asm.getGas() - start) / buckets;
+
+        for (int i = 0; i < buckets; i++) {
+            if (labels[i] == revert)
+                continue;
+
+            cgen.asm.JUMPDEST(labels[i]);
+            emitLinear(getBucket(cases, buckets, i), gas + OpCode.gas(OpCode.JUMPDEST));
+            cgen.asm.JUMP(revert);
+        }
+    }
+
+    // picks the smallest power of two bucket count that keeps buckets small
+    private int getBuckets(List<DispatchCase> cases) {
+        var min = Integer.highestOneBit(Math.max(cases.size() - 1, 1)) << 1;
+
+        var best = min;
+        for (var buckets = min; buckets <= min * 4; buckets <<= 1) {
+            if (getBucketSize(cases, buckets) < getBucketSize(cases, best))
+                best = buckets;
+        }
+        return best;
+    }
+
+    private int getBucketSize(List<DispatchCase> cases, int buckets) {
+        var max = 0;
+        for (int i = 0; i < buckets; i++)
+            max = Math.max(max, getBucket(cases, buckets, i).size());
+        return max;
+    }
+
+    private List<DispatchCase> getBucket(List<DispatchCase> cases, int buckets, int bucket) {
+        return cases.stream().filter(x -> (x.value & (buckets - 1)) == bucket).toList();
+    }
+
+    // returns the gas spent by the time control reaches the next case
+    private int emitCase(DispatchCase entry, int gas) {
+        var next = cgen.asm.getLabel();
+        var body = cgen.methodLabels.get(entry.method);
+        var start = cgen.asm.getGas();
+
+        // selector - case is only zero if they are equal
+        cgen.asm.DUP(1);
+        cgen.asm.PUSH(entry.value);
+        cgen.asm.SUB();
+        cgen.asm.JUMPI(next);
+
+        gas += cgen.asm.getGas() - start;
+        entry.gas = gas;
+
+        var calldata = new CgenCalldata(entry.method.getFormals(), batchCalldata);
+        entry.unbatchedGas = calldata.getUnbatchedGas();
+
+        start = cgen.asm.getGas();
+        calldata.emitWords(cgen.asm);
+        entry.decodeGas = cgen.asm.getGas() - start;
+
+        cgen.asm.PUSHLABEL(stop);
+
+        start = cgen.asm.getGas();
+        calldata.emitArgs(cgen.asm);
+        entry.decodeGas += cgen.asm.getGas() - start;
+
+        cgen.asm.JUMP(body);
+
+        cgen.asm.JUMPDEST(next);
+        return gas + OpCode.gas(OpCode.JUMPDEST);
+    }
+}
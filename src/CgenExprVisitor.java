@@ -1,81 +1,253 @@
 import ast.*;
 import ast.visitor.BaseVisitor;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 class CgenEnv {
+    private Cgen cgen;
     private MethodNode method;
-    private ArrayList<Symbol> locals;
-    private int delta;
 
-    public CgenEnv(MethodNode method, ArrayList<Symbol> locals) {
-        this.method = method;
-        this.locals = locals;
-        this.delta = 0;
-    }
+    // number of stack items in the frame, counted from above the return address,
+    // or from above whatever is below the arguments of an inlined body
+    private int height;
 
-    public boolean isLocal(Symbol name) {
-        return locals.contains(name);
-    }
+    // frame positions of the arguments and the locals declared so far by their binding's index,
+    // the bottom argument is at 1
+    private int[] variables;
+
+    // frame position of the return value, -1 if the method leaves it on top instead
+    private int returnSlot = -1;
+
+    // storage slots whose words are kept in the frame, and those of them
+    // that may have been written since they were last stored
+    private LinkedHashMap<Integer, Integer> cached = new LinkedHashMap<>();
+    private HashSet<Integer> dirty = new HashSet<>();
 
-    private int getArgumentIdx(Symbol name) {
+    public CgenEnv(Cgen cgen, MethodNode method) {
+        this.cgen = cgen;
+        this.method = method;
+
+        // arguments are passed in order, so the last one is on top, and they are bound first
+        variables = new int[method.getVariables()];
         for (int i = 0; i < method.getFormals().size(); i++) {
-            if (method.getFormals().get(i).getName() == name)
-                return method.getFormals().size() - i - 1; // passed in reverse order
+            push();
+            variables[i] = height;
         }
-        return -1;
     }
 
-    public boolean isArgument(Symbol name) {
-        return getArgumentIdx(name) != -1;
+    // makes the value on top of the stack the local's slot
+    public void declareLocal(Binding binding) {
+        variables[binding.getIndex()] = height;
     }
 
-    public void storeReturn() {
-        // we add one to skip over the return address (return value comes after return address)
-        Cgen.asm.SWAP(locals.size() + method.getFormals().size() + delta + 1);
-        Cgen.asm.POP();
+    public void storeVariable(Binding binding) {
+        cgen.asm.SWAP(height - variables[binding.getIndex()]);
+        cgen.asm.POP();
         pop();
     }
 
-    public void storeLocal(Symbol name) {
-        var idx = locals.indexOf(name);
-        Cgen.asm.SWAP(idx + delta);
-        Cgen.asm.POP();
+    public void loadVariable(Binding binding) {
+        cgen.asm.DUP(height - variables[binding.getIndex()] + 1);
+        push();
+    }
+
+    // makes the word just pushed the return value slot
+    public void allocateReturn() {
+        push();
+        returnSlot = height;
+    }
+
+    public boolean hasReturnSlot() {
+        return returnSlot != -1;
+    }
+
+    public void storeReturn() {
+        cgen.asm.SWAP(height - returnSlot);
+        cgen.asm.POP();
         pop();
     }
 
-    public void loadLocal(Symbol name) {
-        var idx = locals.indexOf(name);
-        Cgen.asm.DUP(idx + delta + 1);
+    public void loadReturn() {
+        cgen.asm.DUP(height - returnSlot + 1);
         push();
     }
 
-    public void loadArgument(Symbol name) {
-        var idx = getArgumentIdx(name);
-        Cgen.asm.DUP(idx + locals.size() + delta + 1);
+    // true if a field is extracted or inserted in fewer bytes with PUSH mask AND
+    // and a single shift than with a pair of shifts
+    private static boolean isMaskShorter(StorageField field) {
+        var top = field.offset + field.size == 32;
+        var mask = (top ? 0 : field.size + 2) + (field.offset != 0 ? 3 : 0);
+        var shifts = top ? 3 : 6;
+        return mask <= shifts;
+    }
+
+    // replaces the slot word on top of the stack with the field's value
+    private void emitExtract(StorageField field) {
+        var top = field.offset + field.size == 32;
+
+        // shift the field down and mask off its neighbours above,
+        // or shift them out past the top of the word and shift back down
+        if (isMaskShorter(field)) {
+            if (field.offset != 0) {
+                cgen.asm.PUSH(field.offset * 8);
+                cgen.asm.SHR();
+            }
+
+            if (!top) {
+                cgen.asm.PUSH(field.getMask());
+                cgen.asm.AND();
+            }
+        } else {
+            cgen.asm.PUSH((32 - field.size - field.offset) * 8);
+            cgen.asm.SHL();
+            cgen.asm.PUSH((32 - field.size) * 8);
+            cgen.asm.SHR();
+        }
+    }
+
+    // truncates the value on top of the stack and moves it to the field's position
+    private void emitPosition(StorageField field) {
+        var top = field.offset + field.size == 32;
+
+        // truncate the value so it cannot spill into its neighbours and move it into place,
+        // shifting it up to the top of the word and back down does both
+        if (isMaskShorter(field)) {
+            if (!top) {
+                cgen.asm.PUSH(field.getMask());
+                cgen.asm.AND();
+            }
+
+            if (field.offset != 0) {
+                cgen.asm.PUSH(field.offset * 8);
+                cgen.asm.SHL();
+            }
+        } else {
+            cgen.asm.PUSH((32 - field.size) * 8);
+            cgen.asm.SHL();
+            cgen.asm.PUSH((32 - field.size - field.offset) * 8);
+            cgen.asm.SHR();
+        }
+    }
+
+    // merges the positioned value below the slot word on top of the stack into it
+    private void emitMerge(StorageField field) {
+        // clear the field in the old word, the mask is negated with NOT to keep the constant narrow
+        // and shifted into place once that is shorter than pushing the low zero bytes
+        if (field.offset > 3) {
+            cgen.asm.PUSH(field.getMask());
+            cgen.asm.PUSH(field.offset * 8);
+            cgen.asm.SHL();
+        } else
+            cgen.asm.PUSH(field.getMask().shiftLeft(field.offset * 8));
+
+        cgen.asm.NOT();
+        cgen.asm.AND();
+        cgen.asm.OR();
+    }
+
+    // makes the word just pushed the cached copy of a slot
+    public void cacheSlot(int slot) {
         push();
+        cached.put(slot, height);
     }
 
-    public void storeAttribute(Symbol name) {
-        var idx = Cgen.attributes.indexOf(name);
-        Cgen.asm.PUSH(4, idx);
-        Cgen.asm.SSTORE();
+    public void storeAttribute(Binding binding) {
+        var field = cgen.storage.getField(binding);
+        var position = cached.get(field.slot);
+
+        if (field.packed) {
+            emitPosition(field);
+
+            if (position != null)
+                cgen.asm.DUP(height - position + 1);
+            else {
+                cgen.asm.PUSH(field.slot);
+                cgen.asm.SLOAD();
+            }
+
+            emitMerge(field);
+        } else if (field.size < 32 && field.type != TreeConstants.bool) {
+            // a field alone in its slot is stored as a whole word, truncated the same as a packed one,
+            // a bool is always 0 or 1 already
+            cgen.asm.PUSH(field.getMask());
+            cgen.asm.AND();
+        }
+
+        if (position != null) {
+            cgen.asm.SWAP(height - position);
+            cgen.asm.POP();
+            dirty.add(field.slot);
+        } else {
+            cgen.asm.PUSH(field.slot);
+            cgen.asm.SSTORE();
+        }
         pop();
     }
 
-    public void loadAttribute(Symbol name) {
-        var idx = Cgen.attributes.indexOf(name);
-        Cgen.asm.PUSH(4, idx);
-        Cgen.asm.SLOAD();
+    public void loadAttribute(Binding binding) {
+        var field = cgen.storage.getField(binding);
+        var position = cached.get(field.slot);
+
+        if (position != null)
+            cgen.asm.DUP(height - position + 1);
+        else {
+            cgen.asm.PUSH(field.slot);
+            cgen.asm.SLOAD();
+        }
+
+        if (field.packed)
+            emitExtract(field);
+
         push();
     }
 
-    public int getDelta() {
-        return delta;
+    // stores the cached words of the given slots that may have been written
+    public void flushSlots(Collection<Integer> slots) {
+        for (var entry : cached.entrySet()) {
+            var slot = entry.getKey();
+            if (!slots.contains(slot) || !dirty.remove(slot))
+                continue;
+
+            cgen.asm.DUP(height - entry.getValue() + 1);
+            cgen.asm.PUSH(slot);
+            cgen.asm.SSTORE();
+        }
+    }
+
+    // reloads the cached words of the given slots, after a call that may have written them
+    public void reloadSlots(Collection<Integer> slots) {
+        for (var entry : cached.entrySet()) {
+            var slot = entry.getKey();
+            if (!slots.contains(slot))
+                continue;
+
+            cgen.asm.PUSH(slot);
+            cgen.asm.SLOAD();
+            cgen.asm.SWAP(height - entry.getValue() + 1);
+            cgen.asm.POP();
+        }
+    }
+
+    public void flushCache() {
+        flushSlots(cached.keySet());
+    }
+
+    public HashSet<Integer> getDirty() {
+        return new HashSet<>(dirty);
+    }
+
+    public void setDirty(HashSet<Integer> dirty) {
+        this.dirty = dirty;
+    }
+
+    public int getHeight() {
+        return height;
     }
 
     public void push(int slots) {
-        delta += slots;
+        height += slots;
     }
 
     public void push() {
@@ -83,7 +255,7 @@ class CgenEnv {
     }
 
     public void pop(int slots) {
-        delta -= slots;
+        height -= slots;
     }
 
     public void pop() {
@@ -92,10 +264,16 @@ class CgenEnv {
 }
 
 public class CgenExprVisitor extends BaseVisitor<Object, CgenEnv> {
+    private Cgen cgen;
+
+    public CgenExprVisitor(Cgen cgen) {
+        this.cgen = cgen;
+    }
+
     @Override
     public Integer visit(DeclarationNode node, CgenEnv ctx) {
         visit(node.getExpr(), ctx);
-        ctx.storeLocal(node.getName());
+        ctx.declareLocal(node.getBinding());
         return null;
     }
 
@@ -103,46 +281,61 @@ public class CgenExprVisitor extends BaseVisitor<Object, CgenEnv> {
     public Object visit(AssignNode node, CgenEnv ctx) {
         visit(node.getExpr(), ctx);
 
-        var name = node.getName();
-        if (ctx.isLocal(name))
-            ctx.storeLocal(name);
+        var binding = node.getBinding();
+        if (binding.isVariable())
+            ctx.storeVariable(binding);
         else
-            ctx.storeAttribute(name);
+            ctx.storeAttribute(binding);
 
         return null;
     }
 
     @Override
     public Object visit(DispatchNode node, CgenEnv ctx) {
-        var method = Cgen.methods.get(node.getName());
+        var method = cgen.methods.get(node.getName());
 
-        if (method.getReturn_type() != TreeConstants.void_) {
-            Cgen.asm.PUSH(1, 0);
+        // the callee reads storage, not our cache
+        ctx.flushSlots(cgen.storage.getTouchedSlots(method.getName()));
+
+        if (cgen.inliner.isInlined(method)) {
+            for (var actual : node.getActuals())
+                visit(actual, ctx);
+
+            // the inlined body pops its arguments
+            cgen.emitBody(method, true);
+            ctx.pop(node.getActuals().size());
+        } else {
+            var ret = cgen.asm.getLabel();
+            cgen.asm.PUSHLABEL(ret);
             ctx.push();
-        }
 
-        var ret = Cgen.asm.getLabel();
-        Cgen.asm.PUSH(ret);
-        ctx.push();
+            for (var actual : node.getActuals())
+                visit(actual, ctx);
 
-        for (var actual : node.getActuals())
-            visit(actual, ctx);
+            // the callee pops its arguments and jumps back to ret
+            var body = cgen.methodLabels.get(method);
+            cgen.asm.JUMP(body);
+            ctx.pop(node.getActuals().size() + 1);
 
-        var body = Cgen.methodLabels.get(method);
-        Cgen.asm.JUMP(body);
-        ctx.push();
+            cgen.asm.JUMPDEST(ret);
+        }
 
-        // pop virtual stack args, jump dest, ret address
-        ctx.pop(node.getActuals().size() + 2);
+        // the return value is left on top
+        if (method.getReturn_type() != TreeConstants.void_)
+            ctx.push();
 
-        Cgen.asm.JUMPDEST(ret); // should push if return value
+        ctx.reloadSlots(cgen.storage.getWrittenSlots(method.getName()));
         return null;
     }
 
     @Override
     public Object visit(ReturnNode node, CgenEnv ctx) {
         visit(node.getExpr(), ctx);
-        ctx.storeReturn();
+
+        // otherwise this is the last expression and its value stays on top
+        if (ctx.hasReturnSlot())
+            ctx.storeReturn();
+
         return null;
     }
 
@@ -150,33 +343,39 @@ public class CgenExprVisitor extends BaseVisitor<Object, CgenEnv> {
     public Object visit(TernaryNode node, CgenEnv ctx) {
         visit(node.getCond(), ctx);
 
-        var elseLabel = Cgen.asm.getLabel();
-        var endLabel = Cgen.asm.getLabel();
+        var elseLabel = cgen.asm.getLabel();
+        var endLabel = cgen.asm.getLabel();
 
-        Cgen.asm.ISZERO();
-        Cgen.asm.JUMPI(elseLabel);
+        cgen.asm.ISZERO();
+        cgen.asm.JUMPI(elseLabel);
         ctx.pop();
+        var dirty = ctx.getDirty();
         visit(node.getE1(), ctx);
         ctx.pop(); // little hacky, this avoids both e1 & e2 both pushing to virtual stack
-        Cgen.asm.JUMP(endLabel);
+        cgen.asm.JUMP(endLabel);
+
+        // a cached word is dirty after the ternary if either branch may have written it
+        var dirtyE1 = ctx.getDirty();
+        ctx.setDirty(dirty);
 
-        Cgen.asm.JUMPDEST(elseLabel);
+        cgen.asm.JUMPDEST(elseLabel);
         visit(node.getE2(), ctx);
-        Cgen.asm.JUMPDEST(endLabel);
+        cgen.asm.JUMPDEST(endLabel);
+
+        dirtyE1.addAll(ctx.getDirty());
+        ctx.setDirty(dirtyE1);
 
         return null;
     }
 
     @Override
     public Object visit(ObjectNode node, CgenEnv ctx) {
-        var name = node.getName();
+        var binding = node.getBinding();
 
-        if (ctx.isLocal(name))
-            ctx.loadLocal(name);
-        else if (ctx.isArgument(name))
-            ctx.loadArgument(name);
+        if (binding.isVariable())
+            ctx.loadVariable(binding);
         else
-            ctx.loadAttribute(name);
+            ctx.loadAttribute(binding);
 
         return null;
     }
@@ -187,13 +386,13 @@ public class CgenExprVisitor extends BaseVisitor<Object, CgenEnv> {
         visit(node.getE1(), ctx);
 
         if (node instanceof PlusNode)
-            Cgen.asm.ADD();
+            cgen.asm.ADD();
         else if (node instanceof SubNode)
-            Cgen.asm.SUB();
+            cgen.asm.SUB();
         else if (node instanceof MulNode)
-            Cgen.asm.MUL();
+            cgen.asm.MUL();
         else /* if (node instanceof DivideNode) */
-            Cgen.asm.DIV();
+            cgen.asm.DIV();
 
         ctx.pop();
         return null;
@@ -205,13 +404,13 @@ public class CgenExprVisitor extends BaseVisitor<Object, CgenEnv> {
         visit(node.getE1(), ctx);
 
         if (node instanceof EqNode)
-            Cgen.asm.EQ();
+            cgen.asm.EQ();
         else if (node instanceof LEqNode) {
-            Cgen.asm.GT();
-            Cgen.asm.ISZERO();
+            cgen.asm.GT();
+            cgen.asm.ISZERO();
         }
         else /* if (node instanceof LTNode) */
-            Cgen.asm.LT();
+            cgen.asm.LT();
 
         ctx.pop();
         return null;
@@ -220,21 +419,27 @@ public class CgenExprVisitor extends BaseVisitor<Object, CgenEnv> {
     @Override
     public Object visit(NegNode node, CgenEnv ctx) {
         visit(node.getE1(), ctx);
-        Cgen.asm.ISZERO();
+        cgen.asm.ISZERO();
+        return null;
+    }
+
+    @Override
+    public Object visit(CompNode node, CgenEnv ctx) {
+        visit(node.getE1(), ctx);
+        cgen.asm.ISZERO();
         return null;
     }
 
     @Override
     public Integer visit(IntConstNode node, CgenEnv ctx) {
-        var val = Integer.parseInt(node.getVal().toString());
-        Cgen.asm.PUSH(4, val);
+        cgen.asm.PUSH(node.getValue());
         ctx.push();
         return null;
     }
 
     @Override
     public Integer visit(BoolConstNode node, CgenEnv ctx) {
-        Cgen.asm.PUSH(4, node.getVal() ? 1 : 0);
+        cgen.asm.PUSH(node.getVal() ? 1 : 0);
         ctx.push();
         return null;
     }
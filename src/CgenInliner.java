@@ -0,0 +1,127 @@
+import ast.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+class InlineDecision {
+    public MethodNode method;
+    public int sites;
+    public int size;
+    public String reason;
+
+    InlineDecision(MethodNode method, int sites, int size, String reason) {
+        this.method = method;
+        this.sites = sites;
+        this.size = size;
+        this.reason = reason;
+    }
+}
+
+/** Decides which internal methods have their body substituted at every call site.
+ * <p>
+ * Recursive methods and those listed in --inline-never are never inlined, those listed
+ * in --inline-always are. Otherwise a method is inlined if it has a single call site,
+ * if its body is at most --inline-size bytes, or if inlining it everywhere makes the
+ * code smaller than keeping one copy behind a call. Body sizes are measured by emitting
+ * the body into a scratch assembler, after the methods it calls have been decided.
+ * */
+public class CgenInliner {
+    // caller side of a call: PUSH return label, PUSH body label, JUMP, JUMPDEST
+    private static final int CALL_BYTES = 6;
+
+    // callee side of a call: JUMPDEST, JUMP
+    private static final int ENTRY_BYTES = 2;
+
+    private Cgen cgen;
+    private Options options;
+    private HashMap<Symbol, MethodNode> methods;
+    private CallGraph graph;
+
+    private HashMap<MethodNode, Boolean> decided = new HashMap<>();
+    private LinkedHashMap<MethodNode, InlineDecision> inlined = new LinkedHashMap<>();
+
+    public CgenInliner(Cgen cgen, Options options, HashMap<Symbol, MethodNode> methods, CallGraph graph) {
+        this.cgen = cgen;
+        this.options = options;
+        this.methods = methods;
+        this.graph = graph;
+    }
+
+    public boolean isInlined(MethodNode method) {
+        var result = decided.get(method);
+        if (result == null) {
+            result = decide(method);
+            decided.put(method, result);
+        }
+        return result;
+    }
+
+    public boolean isEmitted(MethodNode method) {
+        return method.isPublic() || !isInlined(method);
+    }
+
+    private boolean decide(MethodNode method) {
+        var name = method.getName().toString();
+        var sites = graph.getCalls(method.getName());
+
+        if (!options.inline || sites == 0 || options.inlineNever.contains(name) || isRecursive(method))
+            return false;
+
+        // measuring the body decides the methods it calls first
+        var size = measure(method);
+
+        String reason;
+        if (options.inlineAlways.contains(name))
+            reason = "forced";
+        else if (sites == 1)
+            reason = "single call site";
+        else if (size <= options.inlineSize)
+            reason = "small";
+        else {
+            var outlined = (method.isPublic() ? 0 : size + ENTRY_BYTES) + sites * CALL_BYTES;
+            if (sites * size > outlined)
+                return false;
+            reason = "smaller inlined";
+        }
+
+        inlined.put(method, new InlineDecision(method, sites, size, reason));
+        return true;
+    }
+
+    private boolean isRecursive(MethodNode method) {
+        var visited = new HashSet<Symbol>();
+        var pending = new ArrayList<>(graph.getCallees(method.getName()));
+
+        while (!pending.isEmpty()) {
+            var name = pending.remove(pending.size() - 1);
+            if (name == method.getName())
+                return true;
+            if (methods.containsKey(name) && visited.add(name))
+                pending.addAll(graph.getCallees(name));
+        }
+        return false;
+    }
+
+    private int measure(MethodNode method) {
+        var asm = cgen.asm;
+        cgen.asm = new Assembler();
+        cgen.emitBody(method, true);
+        var size = cgen.asm.getMinSize();
+        cgen.asm = asm;
+        return size;
+    }
+
+    public String toString() {
+        var out = new StringBuilder();
+        out.append(String.format("Inlining: %d methods inlined at %d call sites", inlined.size(),
+                inlined.values().stream().mapToInt(x -> x.sites).sum()));
+
+        for (var decision : inlined.values())
+            out.append(String.format("%n  %s: %d sites, %d bytes (%s)",
+                    decision.method.getName(), decision.sites, decision.size, decision.reason));
+
+        return out.toString();
+    }
+}
@@ -0,0 +1,360 @@
+import ast.*;
+import ast.visitor.BaseVisitor;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+class StorageField {
+    public Symbol name;
+    public Symbol type;
+    public int slot;
+
+    // in bytes, counted from the least significant end of the slot
+    public int offset;
+    public int size;
+
+    // true if other fields share the slot, so accesses need to shift and mask
+    public boolean packed;
+
+    StorageField(Symbol name, Symbol type, int size) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+    }
+
+    public BigInteger getMask() {
+        return BigInteger.ONE.shiftLeft(size * 8).subtract(BigInteger.ONE);
+    }
+}
+
+class StorageSlot {
+    public List<StorageField> fields = new ArrayList<>();
+    public HashSet<MethodNode> methods = new HashSet<>();
+    public int used;
+}
+
+class AttributeAccessCollector extends BaseVisitor<Object, HashMap<Symbol, MethodNode>> {
+    public HashSet<Symbol> attributes = new HashSet<>();
+    public HashSet<Symbol> writes = new HashSet<>();
+    public HashSet<Symbol> callees = new HashSet<>();
+
+    @Override
+    public Object visit(AssignNode node, HashMap<Symbol, MethodNode> methods) {
+        if (!node.getBinding().isVariable()) {
+            attributes.add(node.getName());
+            writes.add(node.getName());
+        }
+        return super.visit(node, methods);
+    }
+
+    @Override
+    public Object visit(ObjectNode node, HashMap<Symbol, MethodNode> methods) {
+        if (!node.getBinding().isVariable())
+            attributes.add(node.getName());
+        return null;
+    }
+
+    @Override
+    public Object visit(DispatchNode node, HashMap<Symbol, MethodNode> methods) {
+        callees.add(node.getName());
+        return super.visit(node, methods);
+    }
+}
+
+// counts the accesses to each slot in a method body, in the order codegen evaluates them
+class SlotAccessCounter extends BaseVisitor<Object, Boolean> {
+    // accesses made on every path through the body, writes to packed fields read the slot as well
+    public HashMap<Integer, Integer> reads = new HashMap<>();
+    public HashMap<Integer, Integer> writes = new HashMap<>();
+
+    // slots written inside a branch, which a cached word would store on every path
+    public HashSet<Integer> conditionalWrites = new HashSet<>();
+
+    // calls that may read each slot, which store a cached word first, and calls that
+    // may write it, which load it again, counted whether they are in a branch or not
+    public HashMap<Integer, Integer> flushes = new HashMap<>();
+    public HashMap<Integer, Integer> reloads = new HashMap<>();
+
+    // slots whose first access is not a whole-word write outside any branch,
+    // so their current value has to be loaded before it is cached
+    public HashSet<Integer> loads = new HashSet<>();
+
+    // true if keeping the slot on the stack takes fewer SLOADs and SSTOREs on every path,
+    // counting the load on entry, the store on exit and those around calls
+    public boolean isWorthCaching(int slot) {
+        if (conditionalWrites.contains(slot))
+            return false;
+
+        var read = reads.getOrDefault(slot, 0);
+        var written = writes.getOrDefault(slot, 0);
+        var loaded = (loads.contains(slot) ? 1 : 0) + reloads.getOrDefault(slot, 0);
+        var stored = written > 0 ? 1 + flushes.getOrDefault(slot, 0) : 0;
+        return read + written > loaded + stored;
+    }
+
+    private CgenStorage storage;
+    private HashSet<Integer> seen = new HashSet<>();
+
+    SlotAccessCounter(CgenStorage storage) {
+        this.storage = storage;
+    }
+
+    private void access(Binding binding, boolean write, boolean conditional) {
+        if (binding.isVariable())
+            return;
+
+        var field = storage.getField(binding);
+
+        if (conditional) {
+            if (write)
+                conditionalWrites.add(field.slot);
+        } else {
+            if (!write || field.packed)
+                reads.merge(field.slot, 1, Integer::sum);
+            if (write)
+                writes.merge(field.slot, 1, Integer::sum);
+        }
+        if (seen.add(field.slot) && (!write || field.packed || conditional))
+            loads.add(field.slot);
+    }
+
+    @Override
+    public Object visit(AssignNode node, Boolean conditional) {
+        visit((Tree) node.getExpr(), conditional);
+        access(node.getBinding(), true, conditional);
+        return null;
+    }
+
+    @Override
+    public Object visit(ObjectNode node, Boolean conditional) {
+        access(node.getBinding(), false, conditional);
+        return null;
+    }
+
+    @Override
+    public Object visit(BinopNode node, Boolean conditional) {
+        visit((Tree) node.getE2(), conditional);
+        visit((Tree) node.getE1(), conditional);
+        return null;
+    }
+
+    @Override
+    public Object visit(TernaryNode node, Boolean conditional) {
+        visit((Tree) node.getCond(), conditional);
+        visit((Tree) node.getE1(), true);
+        visit((Tree) node.getE2(), true);
+        return null;
+    }
+
+    @Override
+    public Object visit(DispatchNode node, Boolean conditional) {
+        for (var slot : storage.getTouchedSlots(node.getName()))
+            flushes.merge(slot, 1, Integer::sum);
+        for (var slot : storage.getWrittenSlots(node.getName()))
+            reloads.merge(slot, 1, Integer::sum);
+        return super.visit(node, conditional);
+    }
+}
+
+/** Assigns attributes to storage slots, packing those smaller than a word.
+ * <p>
+ * Attributes that are accessed by the same public methods are packed into the
+ * same slot where possible, so a call pays for one cold slot instead of several.
+ * uint256 attributes always get a slot of their own, and so does a small attribute
+ * that nothing else fits next to, in which case it is accessed as a whole word.
+ * */
+public class CgenStorage {
+    private LinkedHashMap<Symbol, StorageField> fields = new LinkedHashMap<>();
+    private int slots;
+
+    // the field of each attribute binding, by its index
+    private StorageField[] bindings;
+
+    private HashMap<Symbol, AttributeAccessCollector> collectors = new HashMap<>();
+
+    // slots each method may access or write, including through the methods it calls
+    private HashMap<Symbol, HashSet<Integer>> touched = new HashMap<>();
+    private HashMap<Symbol, HashSet<Integer>> written = new HashMap<>();
+
+    public static int getSize(Symbol type) {
+        return switch (type.toString()) {
+            case "bool" -> 1;
+            case "uint8" -> 1;
+            case "uint16" -> 2;
+            case "uint32" -> 4;
+            case "uint64" -> 8;
+            case "uint128" -> 16;
+            case "uint256" -> 32;
+            default -> 0;
+        };
+    }
+
+    public CgenStorage(ContractNode contract) {
+        var methods = new HashMap<Symbol, MethodNode>();
+        var attributes = new ArrayList<Symbol>();
+        for (var feature : contract.getFeatures()) {
+            if (feature instanceof AttributeNode attribute) {
+                var size = getSize(attribute.getType_decl());
+                if (size == 0)
+                    Utilities.fatalError("CgenStorage: unknown type " + attribute.getType_decl());
+                fields.put(attribute.getName(), new StorageField(attribute.getName(), attribute.getType_decl(), size));
+                attributes.add(attribute.getName());
+            } else if (feature instanceof MethodNode method)
+                methods.put(method.getName(), method);
+        }
+
+        // attributes are bound in declaration order, and a redeclared name to its last field
+        bindings = new StorageField[attributes.size()];
+        for (int i = 0; i < attributes.size(); i++)
+            bindings[i] = fields.get(attributes.get(i));
+
+        for (var method : methods.values()) {
+            var collector = new AttributeAccessCollector();
+            method.accept(collector, methods);
+            collectors.put(method.getName(), collector);
+        }
+
+        var accesses = getAccesses(methods);
+
+        // largest first, so smaller fields fill the gaps that are left
+        var order = new ArrayList<>(fields.values());
+        order.sort((x, y) -> y.size - x.size);
+
+        var open = new ArrayList<StorageSlot>();
+        for (var field : order) {
+            var methodsTouching = accesses.getOrDefault(field.name, new HashSet<>());
+
+            if (field.size == 32) {
+                field.slot = slots++;
+                continue;
+            }
+
+            // prefer the slot sharing the most methods, otherwise the first with room
+            StorageSlot best = null;
+            var bestShared = -1;
+            for (var slot : open) {
+                if (slot.used + field.size > 32)
+                    continue;
+
+                var shared = 0;
+                for (var method : methodsTouching)
+                    shared += slot.methods.contains(method) ? 1 : 0;
+
+                if (shared > bestShared) {
+                    best = slot;
+                    bestShared = shared;
+                }
+            }
+
+            if (best == null) {
+                best = new StorageSlot();
+                open.add(best);
+            }
+
+            field.offset = best.used;
+            best.used += field.size;
+            best.fields.add(field);
+            best.methods.addAll(methodsTouching);
+        }
+
+        // open slots follow the uint256 ones
+        for (var slot : open) {
+            for (var field : slot.fields) {
+                field.slot = slots;
+                field.packed = slot.fields.size() > 1;
+            }
+            slots++;
+        }
+
+        for (var method : methods.keySet()) {
+            var methodTouched = new HashSet<Integer>();
+            var methodWritten = new HashSet<Integer>();
+
+            for (var callee : getReachable(method)) {
+                var collector = collectors.get(callee);
+                for (var attribute : collector.attributes)
+                    methodTouched.add(getSlot(attribute));
+                for (var attribute : collector.writes)
+                    methodWritten.add(getSlot(attribute));
+            }
+
+            touched.put(method, methodTouched);
+            written.put(method, methodWritten);
+        }
+    }
+
+    // returns the method and every method it may call, directly or not
+    private HashSet<Symbol> getReachable(Symbol method) {
+        var visited = new HashSet<Symbol>();
+        var pending = new ArrayList<Symbol>();
+        pending.add(method);
+
+        while (!pending.isEmpty()) {
+            var name = pending.remove(pending.size() - 1);
+            if (collectors.containsKey(name) && visited.add(name))
+                pending.addAll(collectors.get(name).callees);
+        }
+        return visited;
+    }
+
+    // maps each attribute to the public methods that may access it, including through calls
+    private HashMap<Symbol, HashSet<MethodNode>> getAccesses(HashMap<Symbol, MethodNode> methods) {
+        var accesses = new HashMap<Symbol, HashSet<MethodNode>>();
+        for (var method : methods.values()) {
+            if (!method.isPublic())
+                continue;
+
+            for (var callee : getReachable(method.getName())) {
+                for (var attribute : collectors.get(callee).attributes)
+                    accesses.computeIfAbsent(attribute, x -> new HashSet<>()).add(method);
+            }
+        }
+        return accesses;
+    }
+
+    public StorageField getField(Symbol name) {
+        return fields.get(name);
+    }
+
+    public StorageField getField(Binding binding) {
+        return bindings[binding.getIndex()];
+    }
+
+    // -1 for names that turn out not to be attributes
+    private int getSlot(Symbol name) {
+        var field = fields.get(name);
+        return field != null ? field.slot : -1;
+    }
+
+    public HashSet<Integer> getTouchedSlots(Symbol method) {
+        return touched.get(method);
+    }
+
+    public HashSet<Integer> getWrittenSlots(Symbol method) {
+        return written.get(method);
+    }
+
+    /** Returns the layout as JSON, one entry per attribute in declaration order
+     * <p>
+     * Offsets and sizes are in bytes, with offset 0 being the least significant byte of the slot.
+     * */
+    public String toString() {
+        var out = new StringBuilder();
+        out.append("{\n  \"attributes\": [");
+
+        var first = true;
+        for (var field : fields.values()) {
+            out.append(first ? "\n" : ",\n");
+            out.append(String.format("    {\"name\": \"%s\", \"type\": \"%s\", \"slot\": %d, \"offset\": %d, \"size\": %d}",
+                    field.name, field.type, field.slot, field.offset, field.size));
+            first = false;
+        }
+
+        out.append("\n  ]\n}\n");
+        return out.toString();
+    }
+}
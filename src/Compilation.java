@@ -0,0 +1,221 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/** Compiles one source file, holding every piece of state the compiler keeps while doing so.
+ * <p>
+ * Compilations only share the interned symbols, so any number of them can run at the same
+ * time. Messages are collected rather than printed, and an error stops the compilation it
+ * happened in instead of the process.
+ * */
+public class Compilation {
+    public Options options;
+
+    // the source text, or null to read it from options.source
+    public String text;
+
+    // the code of methods compiled before, or null to generate every method
+    public FragmentCache fragments;
+
+    public Cgen cgen;
+    public String contractName;
+    public String runtimeCode;
+    public String creationCode;
+    public GasAnalyzer analyzer;
+
+    // the cache a run looks in, and what it found there
+    private CompileCache cache;
+    private String key;
+    private Properties cached;
+
+    // what a run prints, and the error that stopped it, if any
+    public StringBuilder output = new StringBuilder();
+    public String error;
+
+    public Compilation(Options options) {
+        this.options = options;
+    }
+
+    /** Compiles source text held in memory, which options.source only names
+     * */
+    public Compilation(Options options, String text) {
+        this.options = options;
+        this.text = text;
+    }
+
+    /** Runs every phase up to the creation code, without writing any output
+     * <p>
+     * The stack analysis only runs with --check-stack. Throws a CompilationError if the
+     * source does not compile, or if the analysis fails.
+     * */
+    public void compile() {
+        var program = text != null ? Frontend.lexparse(options.source, text) : Frontend.lexparse(options.source);
+        Semant.analyze(program);
+
+        if (options.fold)
+            program.accept(new ConstantFoldingVisitor(), null);
+
+        //var dump = new DumpVisitor(System.out);
+        //dump.visit(program, "");
+
+        cgen = new Cgen(options, fragments);
+        runtimeCode = cgen.emit(program);
+        creationCode = CgenCreation.emit(runtimeCode);
+        contractName = program.getContract().getName().toString();
+
+        if (options.checkStack)
+            analyze();
+    }
+
+    /** Runs the stack analysis of the runtime code, which the gas report comes from
+     * <p>
+     * Throws a CompilationError if the analysis finds a stack that underflows or does not
+     * match where paths join.
+     * */
+    public void analyze() {
+        analyzer = new GasAnalyzer(runtimeCode, cgen.dispatchReport.cases, cgen.entries);
+        if (!analyzer.errors.isEmpty())
+            Utilities.fatalError("Compiler bug, stack analysis of the runtime code failed: " + analyzer.errors.get(0)
+                    + (analyzer.errors.size() > 1 ? String.format(" (and %d more)", analyzer.errors.size() - 1) : ""));
+    }
+
+    /** Compiles, writes the output files and collects the reports, as the compile command does
+     * <p>
+     * With a cache, a source compiled before with the same options is not compiled again,
+     * its output files and reports are those stored in the cache, and cgen stays null.
+     *
+     * @return false if the compilation failed, with the reason in error
+     * */
+    public boolean run() {
+        return prepare() && write();
+    }
+
+    /** Compiles, or finds the compilation in the cache, without writing any output files
+     * <p>
+     * Sets contractName, which names the files write() writes. The stack analysis always
+     * runs, since write() writes the gas report.
+     *
+     * @return false if the compilation failed, with the reason in error
+     * */
+    public boolean prepare() {
+        try {
+            if (options.cache != null) {
+                cache = new CompileCache(Path.of(options.cache), options.cacheSize * 1024L * 1024L);
+                key = CompileCache.getKey(options, getSource());
+
+                cached = cache.get(key);
+                if (cached != null) {
+                    contractName = cached.getProperty("contract");
+                    return true;
+                }
+            }
+
+            compile();
+            if (analyzer == null)
+                analyze();
+            return true;
+        } catch (CompilationError e) {
+            error = e.getMessage();
+            return false;
+        }
+    }
+
+    /** Writes the output files of a prepared compilation and collects the reports
+     *
+     * @return false if a file could not be written, with the reason in error
+     * */
+    public boolean write() {
+        try {
+            if (cached != null) {
+                restore(cached);
+                println(cache.record(true));
+                return true;
+            }
+
+            var runtimeCodePath = "../out/" + contractName + ".runtime";
+            var creationCodePath = "../out/" + contractName + ".creation";
+            var layoutPath = "../out/" + contractName + ".layout";
+            var gasPath = "../out/" + contractName + ".gas";
+
+            write(runtimeCodePath, runtimeCode, "Runtime code written to: ", "Failed to write runtime output file: ");
+            write(creationCodePath, creationCode, "Creation code written to: ", "Failed to write creation output file: ");
+            write(layoutPath, cgen.storage.toString(), "Storage layout written to: ", "Failed to write storage layout file: ");
+            write(gasPath, analyzer.toString(), "Gas report written to: ", "Failed to write gas report file: ");
+
+            var reportStart = output.length();
+            report();
+
+            if (cache != null) {
+                var entry = new Properties();
+                entry.setProperty("contract", contractName);
+                entry.setProperty("runtime", runtimeCode);
+                entry.setProperty("creation", creationCode);
+                entry.setProperty("layout", cgen.storage.toString());
+                entry.setProperty("gas", analyzer.toString());
+                entry.setProperty("report", output.substring(reportStart));
+                cache.put(key, entry);
+                println(cache.record(false));
+            }
+            return true;
+        } catch (CompilationError e) {
+            error = e.getMessage();
+            return false;
+        }
+    }
+
+    /** Collects the reports of the code generator
+     * */
+    public void report() {
+        println(cgen.dispatchReport);
+        println(cgen.inliner);
+        println(cgen.deadMethods);
+
+        if (cgen.peephole != null)
+            println(cgen.peephole);
+
+        if (fragments != null)
+            println(String.format("Incremental: reused %d method bodies, generated %d", cgen.reused, cgen.generated));
+    }
+
+    // the bytes the key of the cache is computed from
+    private byte[] getSource() {
+        if (text != null)
+            return text.getBytes(StandardCharsets.UTF_8);
+        try {
+            return Files.readAllBytes(Path.of(options.source));
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, options.source);
+            return null;
+        }
+    }
+
+    // writes the output files of a cached compilation, as a compilation would have
+    private void restore(Properties entry) {
+        contractName = entry.getProperty("contract");
+        runtimeCode = entry.getProperty("runtime");
+        creationCode = entry.getProperty("creation");
+
+        write("../out/" + contractName + ".runtime", runtimeCode, "Runtime code written to: ", "Failed to write runtime output file: ");
+        write("../out/" + contractName + ".creation", creationCode, "Creation code written to: ", "Failed to write creation output file: ");
+        write("../out/" + contractName + ".layout", entry.getProperty("layout"), "Storage layout written to: ", "Failed to write storage layout file: ");
+        write("../out/" + contractName + ".gas", entry.getProperty("gas"), "Gas report written to: ", "Failed to write gas report file: ");
+        output.append(entry.getProperty("report"));
+    }
+
+    private void println(Object line) {
+        output.append(line).append(System.lineSeparator());
+    }
+
+    private void write(String path, String contents, String written, String failed) {
+        try (var out = new PrintWriter(path)) {
+            out.print(contents);
+            println(written + path);
+        } catch (FileNotFoundException e) {
+            Utilities.fatalError(failed + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+// an entry of the cache, as it is stored on disk
+class CacheEntry {
+    public String path;
+    public long size;
+    public long lastUsed;
+
+    CacheEntry(Path path) throws IOException {
+        this.path = path.toString();
+        this.size = Files.size(path);
+        this.lastUsed = Files.getLastModifiedTime(path).toMillis();
+    }
+}
+
+/** Keeps compiled contracts on disk, so compiling the same source again skips the compiler.
+ * <p>
+ * An entry is keyed by the SHA-256 of the compiler's own class files, the options that
+ * affect the code, the contents of the profile and the bytes of the source, so the name
+ * of the source file does not matter. It holds every output file and the reports.
+ * <p>
+ * Several processes can share a directory. Entries are written to a temporary file and
+ * renamed into place, so an entry is either complete or not there at all, and a reader
+ * that loses an entry to another process takes it as a miss. A hit marks its entry as
+ * used, and writing an entry evicts the least recently used ones until the directory fits
+ * its size. Hits and misses are counted in a stats file, under a file lock.
+ * */
+public class CompileCache {
+    private static final String SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // temporary files older than this were left by a process that died while writing them
+    private static final long TEMP_LIFETIME_MS = 60 * 60 * 1000;
+
+    // file locks are held by the process, so threads of the same process take turns first
+    private static final Object statsLock = new Object();
+
+    private static String version;
+
+    private Path dir;
+    private long maxBytes;
+
+    public CompileCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the key of a compilation
+     *
+     * @param options the options of the compilation, the source only naming it
+     * @param source  the bytes of the source
+     * */
+    public static String getKey(Options options, byte[] source) {
+        var digest = newDigest();
+        update(digest, getVersion());
+        update(digest, options.getCodeKey());
+
+        if (options.profile != null) {
+            try {
+                update(digest, Files.readAllBytes(Path.of(options.profile)));
+            } catch (IOException e) {
+                Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, options.profile);
+            }
+        } else {
+            update(digest, new byte[0]);
+        }
+
+        update(digest, source);
+        return Hex.toHexString(digest.digest());
+    }
+
+    /** Returns the entry stored under a key, or null if there is none
+     * */
+    public Properties get(String key) {
+        var path = dir.resolve(key + SUFFIX);
+        var entry = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            entry.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // evicted since, the entry read is still good
+        }
+        return entry;
+    }
+
+    /** Stores an entry under a key, then evicts entries until the cache fits its size
+     * <p>
+     * The cache only speeds compilations up, so failing to store an entry is not an error.
+     * */
+    public void put(String key, Properties entry) {
+        Path temp = null;
+        try {
+            Files.createDirectories(dir);
+            temp = Files.createTempFile(dir, key + ".", TEMP_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                entry.store(out, null);
+            }
+            Files.move(temp, dir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            delete(temp);
+            return;
+        }
+        evict();
+    }
+
+    // least recently used first, until the entries fit
+    private void evict() {
+        var entries = new ArrayList<CacheEntry>();
+        var now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (var path : (Iterable<Path>) files::iterator) {
+                var name = path.getFileName().toString();
+                try {
+                    if (name.endsWith(SUFFIX))
+                        entries.add(new CacheEntry(path));
+                    else if (name.endsWith(TEMP_SUFFIX) && now - Files.getLastModifiedTime(path).toMillis() > TEMP_LIFETIME_MS)
+                        delete(path);
+                } catch (IOException e) {
+                    // taken by another process meanwhile
+                }
+            }
+        } catch (IOException e) {
+            return;
+        }
+
+        var size = 0L;
+        for (var entry : entries)
+            size += entry.size;
+
+        entries.sort(Comparator.comparingLong(x -> x.lastUsed));
+        for (var entry : entries) {
+            if (size <= maxBytes)
+                break;
+            delete(Path.of(entry.path));
+            size -= entry.size;
+        }
+    }
+
+    private static void delete(Path path) {
+        if (path == null)
+            return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // left for a later eviction
+        }
+    }
+
+    /** Counts a lookup in the stats of the cache
+     *
+     * @return a line reporting the lookup and the counts so far
+     * */
+    public String record(boolean hit) {
+        var hits = 0L;
+        var misses = 0L;
+        synchronized (statsLock) {
+            try {
+                Files.createDirectories(dir);
+                try (var channel = FileChannel.open(dir.resolve("stats"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    // held until the channel closes, which releases it
+                    channel.lock();
+
+                    var buffer = ByteBuffer.allocate((int) channel.size());
+                    while (buffer.hasRemaining() && channel.read(buffer) != -1)
+                        ;
+
+                    var stats = new Properties();
+                    stats.load(new StringReader(new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1)));
+                    hits = parseCount(stats.getProperty("hits")) + (hit ? 1 : 0);
+                    misses = parseCount(stats.getProperty("misses")) + (hit ? 0 : 1);
+
+                    var text = "hits=" + hits + "\nmisses=" + misses + "\n";
+                    channel.truncate(0);
+                    channel.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)), 0);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                return "Compilation cache " + (hit ? "hit" : "miss") + ", stats unavailable: " + e.getMessage();
+            }
+        }
+
+        return String.format("Compilation cache %s in %s: %d hits, %d misses, %.1f%% hit rate", hit ? "hit" : "miss", dir,
+                hits, misses, 100.0 * hits / (hits + misses));
+    }
+
+    private static long parseCount(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // the SHA-256 of the class files the compiler runs from, so any change to it misses the cache
+    private static synchronized String getVersion() {
+        if (version != null)
+            return version;
+
+        var digest = newDigest();
+        try {
+            var location = Path.of(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (Files.isDirectory(location)) {
+                var classes = new ArrayList<Path>();
+                try (Stream<Path> files = Files.walk(location)) {
+                    files.filter(x -> x.toString().endsWith(".class")).sorted().forEach(classes::add);
+                }
+                for (var path : classes) {
+                    update(digest, location.relativize(path).toString());
+                    update(digest, Files.readAllBytes(path));
+                }
+            } else {
+                update(digest, Files.readAllBytes(location));
+            }
+        } catch (Exception e) {
+            Utilities.fatalError("Cannot use the compilation cache, failed to read the compiler's class files: " + e);
+        }
+
+        version = Hex.toHexString(digest.digest());
+        return version;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // length first, so the fields of a key cannot run into each other
+    private static void update(MessageDigest digest, byte[] bytes) {
+        digest.update(ByteBuffer.allocate(8).putLong(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        update(digest, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,189 @@
+import ast.*;
+import ast.visitor.BaseVisitor;
+
+import java.math.BigInteger;
+
+// marks the variables a method assigns to, by binding index
+class AssignmentCollector extends BaseVisitor<Object, boolean[]> {
+    @Override
+    public Object visit(AssignNode node, boolean[] assigned) {
+        if (node.getBinding().isVariable())
+            assigned[node.getBinding().getIndex()] = true;
+        return super.visit(node, assigned);
+    }
+}
+
+/** Folds expressions whose operands are constants, run after type checking.
+ * <p>
+ * Each visit returns the node that replaces the one visited. Integer arithmetic
+ * wraps around at 2^256 and division by zero yields zero, as on the EVM.
+ * Top-level local declarations with a constant initializer that are never assigned
+ * to are removed, and the constant is substituted wherever the local is read. Locals are
+ * told apart by their binding, so a local that shadows another is a variable of its own.
+ * */
+public class ConstantFoldingVisitor extends BaseVisitor<ExpressionNode, ConstNode<?>[]> {
+    private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(256);
+
+    // constants are compared by value, so folded ones need not share the parser's table
+    private StringTable inttable = new StringTable();
+
+    @Override
+    protected ExpressionNode base(Tree node, ConstNode<?>[] constants) {
+        return node instanceof ExpressionNode expr ? expr : null;
+    }
+
+    private IntConstNode intConst(int lineNumber, BigInteger value, Symbol type) {
+        var node = new IntConstNode(lineNumber, inttable.addString(value.mod(MODULUS).toString()));
+        node.setType(type);
+        return node;
+    }
+
+    private static BoolConstNode boolConst(int lineNumber, boolean value) {
+        var node = new BoolConstNode(lineNumber, value);
+        node.setType(TreeConstants.bool);
+        return node;
+    }
+
+    private ConstNode<?> copy(ConstNode<?> node, int lineNumber) {
+        if (node instanceof IntConstNode intConst)
+            return intConst(lineNumber, intConst.getValue(), intConst.getType());
+        return boolConst(lineNumber, ((BoolConstNode)node).getVal());
+    }
+
+    @Override
+    public ExpressionNode visit(MethodNode node, ConstNode<?>[] constants) {
+        var assigned = new boolean[node.getVariables()];
+        node.accept(new AssignmentCollector(), assigned);
+
+        // the constant of each variable propagated so far, by binding index
+        constants = new ConstNode<?>[node.getVariables()];
+
+        var exprs = node.getExprs();
+        for (int i = 0; i < exprs.size(); i++) {
+            var expr = visit(exprs.get(i), constants);
+
+            if (expr instanceof DeclarationNode decl
+                    && decl.getExpr() instanceof ConstNode<?> value
+                    && !assigned[decl.getBinding().getIndex()]) {
+                constants[decl.getBinding().getIndex()] = value;
+                exprs.remove(i--);
+                continue;
+            }
+
+            exprs.set(i, expr);
+        }
+        return null;
+    }
+
+    @Override
+    public ExpressionNode visit(AssignNode node, ConstNode<?>[] constants) {
+        node.setExpr(visit(node.getExpr(), constants));
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(DeclarationNode node, ConstNode<?>[] constants) {
+        node.setExpr(visit(node.getExpr(), constants));
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(ReturnNode node, ConstNode<?>[] constants) {
+        node.setExpr(visit(node.getExpr(), constants));
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(TernaryNode node, ConstNode<?>[] constants) {
+        node.setCond(visit(node.getCond(), constants));
+        node.setE1(visit(node.getE1(), constants));
+        node.setE2(visit(node.getE2(), constants));
+
+        if (node.getCond() instanceof BoolConstNode cond)
+            return cond.getVal() ? node.getE1() : node.getE2();
+
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(CastNode node, ConstNode<?>[] constants) {
+        node.setExpr(visit(node.getExpr(), constants));
+
+        // casts do not change the value, only its type
+        if (node.getExpr() instanceof IntConstNode expr)
+            return intConst(node.getLineNumber(), expr.getValue(), node.getType());
+
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(DispatchNode node, ConstNode<?>[] constants) {
+        var actuals = node.getActuals();
+        for (int i = 0; i < actuals.size(); i++)
+            actuals.set(i, visit(actuals.get(i), constants));
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(IntBinopNode node, ConstNode<?>[] constants) {
+        node.setE1(visit(node.getE1(), constants));
+        node.setE2(visit(node.getE2(), constants));
+
+        if (!(node.getE1() instanceof IntConstNode e1) || !(node.getE2() instanceof IntConstNode e2))
+            return node;
+
+        var a = e1.getValue();
+        var b = e2.getValue();
+
+        BigInteger value;
+        if (node instanceof PlusNode)
+            value = a.add(b);
+        else if (node instanceof SubNode)
+            value = a.subtract(b);
+        else if (node instanceof MulNode)
+            value = a.multiply(b);
+        else /* if (node instanceof DivideNode) */
+            value = b.signum() == 0 ? BigInteger.ZERO : a.divide(b);
+
+        return intConst(node.getLineNumber(), value, node.getType());
+    }
+
+    @Override
+    public ExpressionNode visit(BoolBinopNode node, ConstNode<?>[] constants) {
+        node.setE1(visit(node.getE1(), constants));
+        node.setE2(visit(node.getE2(), constants));
+
+        if (!(node.getE1() instanceof IntConstNode e1) || !(node.getE2() instanceof IntConstNode e2))
+            return node;
+
+        var compare = e1.getValue().compareTo(e2.getValue());
+
+        boolean value;
+        if (node instanceof EqNode)
+            value = compare == 0;
+        else if (node instanceof LEqNode)
+            value = compare <= 0;
+        else /* if (node instanceof LTNode) */
+            value = compare < 0;
+
+        return boolConst(node.getLineNumber(), value);
+    }
+
+    @Override
+    public ExpressionNode visit(UnopNode node, ConstNode<?>[] constants) {
+        node.setE1(visit(node.getE1(), constants));
+
+        // both NegNode and CompNode are boolean negation
+        if (node.getE1() instanceof BoolConstNode e1)
+            return boolConst(node.getLineNumber(), !e1.getVal());
+
+        return node;
+    }
+
+    @Override
+    public ExpressionNode visit(ObjectNode node, ConstNode<?>[] constants) {
+        var binding = node.getBinding();
+        var value = binding.isVariable() ? constants[binding.getIndex()] : null;
+        return value != null ? copy(value, node.getLineNumber()) : node;
+    }
+}
@@ -0,0 +1,673 @@
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+// a 256-bit word, least significant limb first, used as a storage key and value
+class Word {
+    public long l0, l1, l2, l3;
+
+    Word(long l0, long l1, long l2, long l3) {
+        this.l0 = l0;
+        this.l1 = l1;
+        this.l2 = l2;
+        this.l3 = l3;
+    }
+
+    public boolean isZero() {
+        return (l0 | l1 | l2 | l3) == 0;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Word x && l0 == x.l0 && l1 == x.l1 && l2 == x.l2 && l3 == x.l3;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(l0 ^ 31 * (l1 ^ 31 * (l2 ^ 31 * l3)));
+    }
+
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", l3, l2, l1, l0).replaceFirst("^0+(?=.)", "");
+    }
+}
+
+class EvmResult {
+    public enum Status {
+        STOP,
+        RETURN,
+        REVERT,
+        ERROR
+    }
+
+    public Status status;
+
+    // gas spent executing, including the code deposit of a deployment, excluding intrinsic gas and refunds
+    public long gasUsed;
+    public long refund;
+    public byte[] output = new byte[0];
+
+    // what went wrong if the status is ERROR
+    public String error;
+
+    public boolean isSuccess() {
+        return status == Status.STOP || status == Status.RETURN;
+    }
+
+    public String toString() {
+        return String.format("%s, %d gas%s", status.name().toLowerCase(), gasUsed,
+                status == Status.ERROR ? " (" + error + ")" : refund > 0 ? String.format(", %d refunded", refund) : "");
+    }
+}
+
+/** Executes the opcodes the compiler emits, as a local stand-in for a node running a single contract.
+ * <p>
+ * Stack words are four longs each, least significant limb first, in one flat array, so
+ * arithmetic allocates nothing. Gas follows the Cancun rules: the base cost of each opcode
+ * comes from OpCode.gas, storage accesses are charged as cold or warm per transaction
+ * (EIP-2929), SSTORE is charged and refunded by the net metering of EIP-2200 and EIP-3529,
+ * and memory expansion is charged as it grows.
+ * <p>
+ * The gas reported is the gas spent executing. Intrinsic gas, which the transaction pays before
+ * executing anything, is returned separately by getIntrinsicGas. Refunds are returned as well,
+ * but are capped by the caller, since the cap depends on the gas of the whole transaction.
+ * */
+public class Evm {
+    public static final long DEFAULT_GAS_LIMIT = 30_000_000;
+
+    private static final int MAX_STACK = 1024;
+    private static final int MAX_CODE_SIZE = 24576;
+
+    private static final long COLD_SLOAD = 2100;
+    private static final long WARM_ACCESS = 100;
+    private static final long SSTORE_SET = 20000;
+    private static final long SSTORE_RESET = 2900;
+    private static final long SSTORE_CLEARS_REFUND = 4800;
+    private static final long SSTORE_SENTRY = 2300;
+    private static final long CODE_DEPOSIT = 200;
+
+    private static final Word ZERO = new Word(0, 0, 0, 0);
+
+    public byte[] runtime;
+    public HashMap<Word, Word> storage = new HashMap<>();
+    public long gasLimit = DEFAULT_GAS_LIMIT;
+
+    private long[] stack = new long[MAX_STACK * 4];
+    private int sp;
+    private byte[] memory = new byte[1024];
+    private int memoryWords;
+
+    // per transaction
+    private byte[] code;
+    private boolean[] jumpdests;
+    private byte[] calldata;
+    private long gas;
+    private long refund;
+    private HashSet<Word> warm = new HashSet<>();
+    private HashMap<Word, Word> original;
+
+    // reused to look up storage without allocating
+    private Word probe = new Word(0, 0, 0, 0);
+    private long[] scratch = new long[8];
+
+    private static class Halt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Halt(String msg) {
+            super(msg, null, false, false);
+        }
+    }
+
+    /** Returns the gas a transaction pays before executing any code
+     *
+     * @param data   the calldata, or the creation code of a deployment
+     * @param create true for a deployment
+     * */
+    public static long getIntrinsicGas(byte[] data, boolean create) {
+        long gas = create ? 53000 + 2 * ((data.length + 31) / 32) : 21000;
+        for (var b : data)
+            gas += b == 0 ? 4 : 16;
+        return gas;
+    }
+
+    /** Runs creation code and keeps the code it returns as the runtime code of the contract
+     * */
+    public EvmResult deploy(byte[] creation) {
+        var result = execute(creation, new byte[0]);
+        if (!result.isSuccess())
+            return result;
+
+        var deposit = CODE_DEPOSIT * result.output.length;
+        if (result.output.length > MAX_CODE_SIZE || result.gasUsed + deposit > gasLimit) {
+            result.status = EvmResult.Status.ERROR;
+            result.error = result.output.length > MAX_CODE_SIZE ? "code size limit exceeded" : "out of gas";
+            result.gasUsed = gasLimit;
+            storage = new HashMap<>(original);
+            return result;
+        }
+
+        result.gasUsed += deposit;
+        runtime = result.output;
+        return result;
+    }
+
+    /** Runs the runtime code of the deployed contract with the given calldata
+     * */
+    public EvmResult call(byte[] data) {
+        if (runtime == null)
+            Utilities.fatalError("Evm.call: no contract deployed");
+        return execute(runtime, data);
+    }
+
+    private EvmResult execute(byte[] code, byte[] data) {
+        this.code = code;
+        this.calldata = data;
+        jumpdests = getJumpdests(code);
+
+        sp = 0;
+        memoryWords = 0;
+        Arrays.fill(memory, (byte) 0);
+        gas = 0;
+        refund = 0;
+        warm.clear();
+        original = new HashMap<>(storage);
+
+        var result = new EvmResult();
+        try {
+            run(result);
+            result.gasUsed = gas;
+            result.refund = result.status == EvmResult.Status.REVERT ? 0 : refund;
+        } catch (Halt e) {
+            result.status = EvmResult.Status.ERROR;
+            result.error = e.getMessage();
+            result.gasUsed = gasLimit;
+        }
+
+        if (!result.isSuccess())
+            storage = new HashMap<>(original);
+
+        return result;
+    }
+
+    private static boolean[] getJumpdests(byte[] code) {
+        var jumpdests = new boolean[code.length];
+        for (int pc = 0; pc < code.length; pc++) {
+            var opcode = code[pc] & 0xff;
+            if (opcode == OpCode.JUMPDEST)
+                jumpdests[pc] = true;
+            else if (opcode > OpCode.PUSH && opcode <= OpCode.PUSH + 32)
+                pc += opcode - OpCode.PUSH;
+        }
+        return jumpdests;
+    }
+
+    private void charge(long amount) {
+        gas += amount;
+        if (gas > gasLimit)
+            throw new Halt("out of gas");
+    }
+
+    private void run(EvmResult result) {
+        var pc = 0;
+        while (pc < code.length) {
+            var opcode = code[pc] & 0xff;
+            charge(OpCode.gas(opcode));
+
+            if (opcode >= OpCode.PUSH && opcode <= OpCode.PUSH + 32) {
+                var width = opcode - OpCode.PUSH;
+                push(0, 0, 0, 0);
+                var top = (sp - 1) * 4;
+                for (int i = 0; i < width; i++) {
+                    // immediates past the end of the code read as zero
+                    var b = pc + 1 + i < code.length ? code[pc + 1 + i] & 0xffL : 0;
+                    var bit = (width - 1 - i) * 8;
+                    stack[top + bit / 64] |= b << (bit % 64);
+                }
+                pc += 1 + width;
+                continue;
+            }
+
+            if (opcode >= OpCode.DUP && opcode < OpCode.DUP + 16) {
+                var n = opcode - OpCode.DUP + 1;
+                require(n);
+                var from = (sp - n) * 4;
+                push(stack[from], stack[from + 1], stack[from + 2], stack[from + 3]);
+                pc++;
+                continue;
+            }
+
+            if (opcode >= OpCode.SWAP && opcode < OpCode.SWAP + 16) {
+                var n = opcode - OpCode.SWAP + 1;
+                require(n + 1);
+                var a = (sp - 1) * 4;
+                var b = (sp - 1 - n) * 4;
+                for (int k = 0; k < 4; k++) {
+                    var x = stack[a + k];
+                    stack[a + k] = stack[b + k];
+                    stack[b + k] = x;
+                }
+                pc++;
+                continue;
+            }
+
+            switch (opcode) {
+                case OpCode.STOP -> {
+                    result.status = EvmResult.Status.STOP;
+                    return;
+                }
+                // ADD, MUL, SUB, DIV, LT, GT, EQ, AND, OR, BYTE, SHL, SHR
+                case OpCode.ADD, OpCode.MUL, OpCode.SUB, OpCode.DIV, OpCode.LT, OpCode.GT, OpCode.EQ, OpCode.AND, OpCode.OR,
+                        OpCode.BYTE, OpCode.SHL, OpCode.SHR -> binop(opcode);
+                case OpCode.ISZERO -> {
+                    require(1);
+                    var a = (sp - 1) * 4;
+                    var zero = (stack[a] | stack[a + 1] | stack[a + 2] | stack[a + 3]) == 0;
+                    set(a, zero ? 1 : 0, 0, 0, 0);
+                }
+                case OpCode.NOT -> {
+                    require(1);
+                    var a = (sp - 1) * 4;
+                    for (int k = 0; k < 4; k++)
+                        stack[a + k] = ~stack[a + k];
+                }
+                case OpCode.CALLDATALOAD -> {
+                    require(1);
+                    var a = (sp - 1) * 4;
+                    var offset = toInt(a, Integer.MAX_VALUE);
+                    set(a, 0, 0, 0, 0);
+                    for (int i = 0; i < 32; i++) {
+                        var index = (long) offset + i;
+                        if (index >= calldata.length)
+                            break;
+                        var bit = (31 - i) * 8;
+                        stack[a + bit / 64] |= (calldata[(int) index] & 0xffL) << (bit % 64);
+                    }
+                }
+                case OpCode.CALLDATASIZE -> push(calldata.length, 0, 0, 0);
+                case OpCode.CODECOPY -> {
+                    require(3);
+                    var destOffset = toInt((sp - 1) * 4, -1);
+                    var offset = toInt((sp - 2) * 4, Integer.MAX_VALUE);
+                    var size = toInt((sp - 3) * 4, -1);
+                    sp -= 3;
+
+                    charge(3L * ((size + 31) / 32));
+                    expand(destOffset, size);
+                    for (int i = 0; i < size; i++) {
+                        var index = (long) offset + i;
+                        memory[destOffset + i] = index < code.length ? code[(int) index] : 0;
+                    }
+                }
+                case OpCode.POP -> {
+                    require(1);
+                    sp--;
+                }
+                case OpCode.SLOAD -> {
+                    require(1);
+                    var a = (sp - 1) * 4;
+                    load(a);
+                    if (!warm.contains(probe)) {
+                        charge(COLD_SLOAD - WARM_ACCESS);
+                        warm.add(copy(probe));
+                    }
+                    var value = storage.get(probe);
+                    if (value == null)
+                        set(a, 0, 0, 0, 0);
+                    else
+                        set(a, value.l0, value.l1, value.l2, value.l3);
+                }
+                case OpCode.SSTORE -> {
+                    require(2);
+                    if (gasLimit - gas + OpCode.gas(opcode) <= SSTORE_SENTRY)
+                        throw new Halt("out of gas");
+                    sstore((sp - 1) * 4, (sp - 2) * 4);
+                    sp -= 2;
+                }
+                case OpCode.JUMP -> {
+                    require(1);
+                    pc = getJumpTarget((sp - 1) * 4);
+                    sp--;
+                    continue;
+                }
+                case OpCode.JUMPI -> {
+                    require(2);
+                    var c = (sp - 2) * 4;
+                    var taken = (stack[c] | stack[c + 1] | stack[c + 2] | stack[c + 3]) != 0;
+                    var target = taken ? getJumpTarget((sp - 1) * 4) : pc + 1;
+                    sp -= 2;
+                    pc = target;
+                    continue;
+                }
+                case OpCode.JUMPDEST -> {
+                }
+                case OpCode.RETURN, OpCode.REVERT -> {
+                    require(2);
+                    var offset = toInt((sp - 1) * 4, -1);
+                    var size = toInt((sp - 2) * 4, -1);
+                    sp -= 2;
+
+                    expand(offset, size);
+                    result.output = Arrays.copyOfRange(memory, offset, offset + size);
+                    result.status = opcode == OpCode.RETURN ? EvmResult.Status.RETURN : EvmResult.Status.REVERT;
+                    return;
+                }
+                default -> throw new Halt(String.format("invalid opcode 0x%02x at 0x%x", opcode, pc));
+            }
+            pc++;
+        }
+
+        // running off the end of the code stops
+        result.status = EvmResult.Status.STOP;
+    }
+
+    private void require(int n) {
+        if (sp < n)
+            throw new Halt("stack underflow");
+    }
+
+    private void push(long l0, long l1, long l2, long l3) {
+        if (sp == MAX_STACK)
+            throw new Halt("stack overflow");
+        set(sp * 4, l0, l1, l2, l3);
+        sp++;
+    }
+
+    private void set(int at, long l0, long l1, long l2, long l3) {
+        stack[at] = l0;
+        stack[at + 1] = l1;
+        stack[at + 2] = l2;
+        stack[at + 3] = l3;
+    }
+
+    // returns the word as an int, or ifLarge if it does not fit (-1 means out of gas)
+    private int toInt(int at, int ifLarge) {
+        if ((stack[at + 1] | stack[at + 2] | stack[at + 3]) != 0 || stack[at] < 0 || stack[at] > Integer.MAX_VALUE) {
+            if (ifLarge == -1)
+                throw new Halt("out of gas");
+            return ifLarge;
+        }
+        return (int) stack[at];
+    }
+
+    private int getJumpTarget(int at) {
+        var target = toInt(at, Integer.MAX_VALUE);
+        if (target >= code.length || !jumpdests[target])
+            throw new Halt("invalid jump destination");
+        return target;
+    }
+
+    private static long memoryCost(long words) {
+        return 3 * words + words * words / 512;
+    }
+
+    private void expand(int offset, int size) {
+        if (size == 0)
+            return;
+
+        var words = ((long) offset + size + 31) / 32;
+        if (words <= memoryWords)
+            return;
+
+        charge(memoryCost(words) - memoryCost(memoryWords));
+        if (words * 32 > memory.length)
+            memory = Arrays.copyOf(memory, (int) Math.max(words * 32, memory.length * 2L));
+        memoryWords = (int) words;
+    }
+
+    // pops the top two words and pushes the result of a binary opcode over them
+    private void binop(int opcode) {
+        require(2);
+        var a = (sp - 1) * 4;
+        var b = (sp - 2) * 4;
+
+        switch (opcode) {
+            case OpCode.ADD -> add(a, b);
+            case OpCode.MUL -> mul(a, b);
+            case OpCode.SUB -> sub(a, b);
+            case OpCode.DIV -> div(a, b);
+            case OpCode.LT -> set(b, compare(a, b) < 0 ? 1 : 0, 0, 0, 0);
+            case OpCode.GT -> set(b, compare(a, b) > 0 ? 1 : 0, 0, 0, 0);
+            case OpCode.EQ -> set(b, compare(a, b) == 0 ? 1 : 0, 0, 0, 0);
+            case OpCode.AND -> {
+                for (int k = 0; k < 4; k++)
+                    stack[b + k] &= stack[a + k];
+            }
+            case OpCode.OR -> {
+                for (int k = 0; k < 4; k++)
+                    stack[b + k] |= stack[a + k];
+            }
+            case OpCode.BYTE -> {
+                var index = toInt(a, 32);
+                var value = index < 32 ? (stack[b + (31 - index) / 8] >>> ((31 - index) % 8 * 8)) & 0xff : 0;
+                set(b, value, 0, 0, 0);
+            }
+            case OpCode.SHL -> shiftLeft(toInt(a, 256), b);
+            case OpCode.SHR -> shiftRight(toInt(a, 256), b);
+        }
+        sp--;
+    }
+
+    // unsigned comparison of the words at a and b
+    private int compare(int a, int b) {
+        for (int k = 3; k >= 0; k--) {
+            var c = Long.compareUnsigned(stack[a + k], stack[b + k]);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    // b = a + b
+    private void add(int a, int b) {
+        long carry = 0;
+        for (int k = 0; k < 4; k++) {
+            var x = stack[a + k];
+            var sum = x + stack[b + k];
+            var next = Long.compareUnsigned(sum, x) < 0 ? 1 : 0;
+            sum += carry;
+            if (sum == 0 && carry == 1)
+                next = 1;
+            stack[b + k] = sum;
+            carry = next;
+        }
+    }
+
+    // b = a - b
+    private void sub(int a, int b) {
+        long borrow = 0;
+        for (int k = 0; k < 4; k++) {
+            var x = stack[a + k];
+            var y = stack[b + k];
+            stack[b + k] = x - y - borrow;
+            borrow = Long.compareUnsigned(x, y) < 0 || (borrow == 1 && x == y) ? 1 : 0;
+        }
+    }
+
+    private static long multiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    // b = a * b, keeping the low 256 bits
+    private void mul(int a, int b) {
+        Arrays.fill(scratch, 0, 4, 0);
+        for (int i = 0; i < 4; i++) {
+            long carry = 0;
+            for (int j = 0; i + j < 4; j++) {
+                var x = stack[a + i];
+                var y = stack[b + j];
+                var lo = x * y;
+                var hi = multiplyHigh(x, y);
+
+                var sum = scratch[i + j] + lo;
+                hi += Long.compareUnsigned(sum, lo) < 0 ? 1 : 0;
+                var total = sum + carry;
+                hi += Long.compareUnsigned(total, sum) < 0 ? 1 : 0;
+
+                scratch[i + j] = total;
+                carry = hi;
+            }
+        }
+        set(b, scratch[0], scratch[1], scratch[2], scratch[3]);
+    }
+
+    // b = a / b, zero if b is zero
+    private void div(int a, int b) {
+        if ((stack[b] | stack[b + 1] | stack[b + 2] | stack[b + 3]) == 0)
+            return;
+
+        if ((stack[a + 1] | stack[a + 2] | stack[a + 3] | stack[b + 1] | stack[b + 2] | stack[b + 3]) == 0) {
+            set(b, Long.divideUnsigned(stack[a], stack[b]), 0, 0, 0);
+            return;
+        }
+
+        // shift and subtract, with the quotient in scratch[0..3] and the remainder in scratch[4..7]
+        Arrays.fill(scratch, 0);
+        for (int bit = 255; bit >= 0; bit--) {
+            // a remainder that outgrows 256 bits is larger than any divisor
+            var overflow = scratch[7] < 0;
+            for (int k = 7; k > 4; k--)
+                scratch[k] = (scratch[k] << 1) | (scratch[k - 1] >>> 63);
+            scratch[4] = (scratch[4] << 1) | ((stack[a + bit / 64] >>> (bit % 64)) & 1);
+
+            var greater = overflow ? 1 : 0;
+            for (int k = 3; k >= 0 && greater == 0; k--)
+                greater = Long.compareUnsigned(scratch[4 + k], stack[b + k]);
+
+            if (greater >= 0) {
+                long borrow = 0;
+                for (int k = 0; k < 4; k++) {
+                    var x = scratch[4 + k];
+                    var y = stack[b + k];
+                    scratch[4 + k] = x - y - borrow;
+                    borrow = Long.compareUnsigned(x, y) < 0 || (borrow == 1 && x == y) ? 1 : 0;
+                }
+                scratch[bit / 64] |= 1L << (bit % 64);
+            }
+        }
+        set(b, scratch[0], scratch[1], scratch[2], scratch[3]);
+    }
+
+    private void shiftLeft(int shift, int b) {
+        if (shift >= 256) {
+            set(b, 0, 0, 0, 0);
+            return;
+        }
+        var limbs = shift / 64;
+        var bits = shift % 64;
+        for (int k = 3; k >= 0; k--) {
+            var from = k - limbs;
+            var value = from >= 0 ? stack[b + from] << bits : 0;
+            if (bits != 0 && from - 1 >= 0)
+                value |= stack[b + from - 1] >>> (64 - bits);
+            stack[b + k] = value;
+        }
+    }
+
+    private void shiftRight(int shift, int b) {
+        if (shift >= 256) {
+            set(b, 0, 0, 0, 0);
+            return;
+        }
+        var limbs = shift / 64;
+        var bits = shift % 64;
+        for (int k = 0; k < 4; k++) {
+            var from = k + limbs;
+            var value = from < 4 ? stack[b + from] >>> bits : 0;
+            if (bits != 0 && from + 1 < 4)
+                value |= stack[b + from + 1] << (64 - bits);
+            stack[b + k] = value;
+        }
+    }
+
+    private void load(int at) {
+        probe.l0 = stack[at];
+        probe.l1 = stack[at + 1];
+        probe.l2 = stack[at + 2];
+        probe.l3 = stack[at + 3];
+    }
+
+    private static Word copy(Word word) {
+        return new Word(word.l0, word.l1, word.l2, word.l3);
+    }
+
+    private void sstore(int key, int value) {
+        load(key);
+        if (!warm.contains(probe)) {
+            charge(COLD_SLOAD);
+            warm.add(copy(probe));
+        }
+
+        var current = storage.getOrDefault(probe, ZERO);
+        var initial = original.getOrDefault(probe, ZERO);
+        var next = new Word(stack[value], stack[value + 1], stack[value + 2], stack[value + 3]);
+
+        // the base cost charged up front is that of a warm access
+        if (current.equals(next))
+            return;
+
+        if (initial.equals(current)) {
+            charge((initial.isZero() ? SSTORE_SET : SSTORE_RESET) - WARM_ACCESS);
+            if (!initial.isZero() && next.isZero())
+                refund += SSTORE_CLEARS_REFUND;
+        } else {
+            if (!initial.isZero()) {
+                if (current.isZero())
+                    refund -= SSTORE_CLEARS_REFUND;
+                else if (next.isZero())
+                    refund += SSTORE_CLEARS_REFUND;
+            }
+            if (initial.equals(next))
+                refund += (initial.isZero() ? SSTORE_SET : SSTORE_RESET) - WARM_ACCESS;
+        }
+
+        if (next.isZero())
+            storage.remove(probe);
+        else
+            storage.put(copy(probe), next);
+    }
+
+    /** Deploys a .creation file and runs each calldata given in hex against it
+     * <p>
+     * Prints the gas of each transaction and the storage after the last one.
+     * */
+    public static void main(String[] args) {
+        try {
+            deployAndCall(args);
+        } catch (CompilationError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void deployAndCall(String[] args) {
+        if (args.length == 0)
+            Utilities.fatalError("Usage: evm <contract.creation> [calldata in hex]...");
+
+        String creation = null;
+        try {
+            creation = Files.readString(Path.of(args[0])).trim();
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, args[0]);
+        }
+
+        var evm = new Evm();
+        var result = evm.deploy(Hex.decode(creation));
+        System.out.println("Deploy: " + result + ", " + (evm.runtime == null ? 0 : evm.runtime.length) + " bytes");
+        if (!result.isSuccess())
+            System.exit(1);
+
+        for (int i = 1; i < args.length; i++) {
+            var data = Hex.decode(args[i].startsWith("0x") ? args[i].substring(2) : args[i]);
+            System.out.println("Call " + args[i] + ": " + evm.call(data));
+        }
+
+        for (Map.Entry<Word, Word> entry : evm.storage.entrySet())
+            System.out.println("  [" + entry.getKey() + "] = " + entry.getValue());
+    }
+}
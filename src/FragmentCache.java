@@ -0,0 +1,39 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Keeps the code generated for methods across compilations, so that compiling a contract
+ * again after some of its methods changed only generates those methods again.
+ * <p>
+ * Fragments are keyed by everything their code depends on, see Cgen.getKey, so one cache
+ * can be shared by compilations of different contracts with different options, from any
+ * number of threads. The least recently used fragments are dropped beyond the size.
+ * */
+public class FragmentCache {
+    private static final int DEFAULT_SIZE = 16384;
+
+    // least recently used first
+    private LinkedHashMap<String, Fragment> fragments;
+
+    public FragmentCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /** Creates a cache of at most the given number of fragments
+     * */
+    public FragmentCache(int size) {
+        fragments = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    public synchronized Fragment get(String key) {
+        return fragments.get(key);
+    }
+
+    public synchronized void put(String key, Fragment fragment) {
+        fragments.put(key, fragment);
+    }
+}
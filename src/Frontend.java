@@ -1,34 +1,125 @@
 import ast.ProgramNode;
-import org.antlr.v4.runtime.ANTLRFileStream;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// a source held in memory, whose chars the tree's symbols are interned from
+class SourceStream extends ANTLRInputStream {
+    SourceStream(String text, String name) {
+        super(text);
+        this.name = name;
+    }
+
+    SourceStream(Reader reader, String name) throws IOException {
+        super(reader);
+        this.name = name;
+    }
+
+    public char[] getChars() {
+        return data;
+    }
+}
+
+// collects syntax errors instead of printing them, so they are reported with the compilation they belong to
+class SyntaxErrorCollector extends BaseErrorListener {
+    public List<Diagnostic> errors = new ArrayList<>();
+    private String name;
+
+    SyntaxErrorCollector(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void syntaxError(Recognizer<?, ?> recognizer, Object symbol, int line, int column, String msg, RecognitionException e) {
+        errors.add(new Diagnostic(name, line, column, msg));
+    }
+}
 
 public class Frontend {
     public static ProgramNode lexparse(String path) {
+        try (var reader = new FileReader(path)) {
+            return lexparse(new SourceStream(reader, path), path);
+        } catch (FileNotFoundException ex) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, path);
+        } catch (IOException ex) {
+            Utilities.fatalError(Utilities.ErrorCode.EXCEPTION_LEXER, ex);
+        }
+        return null;
+    }
+
+    /** Parses source text held in memory
+     *
+     * @param name the name errors refer to the source by, as if it was read from a file
+     * @param text the source text
+     * */
+    public static ProgramNode lexparse(String name, String text) {
+        return lexparse(new SourceStream(text, name), name);
+    }
+
+    private static ProgramNode lexparse(SourceStream input, String name) {
         try {
-            var input = new ANTLRFileStream(path);
+            var errors = new SyntaxErrorCollector(name);
+
             var lexer = new SolidityLexer(input);
-            var tokens = new CommonTokenStream(lexer);
-            var parser = new SolidityParser(tokens);
+            lexer.removeErrorListeners();
+            lexer.addErrorListener(errors);
 
-            var tree = parser.program();
+            var parser = new SolidityParser(new CommonTokenStream(lexer));
+            var tree = parse(parser, errors);
 
-            if (Utilities.errors())
-                Utilities.fatalError(Utilities.ErrorCode.LEXER_PARSER);
+            if (parser.lexErrors != 0 || !errors.errors.isEmpty())
+                Utilities.fatalError(Utilities.ErrorCode.LEXER_PARSER, errors.errors);
 
-            var builder = new ASTBuilder();
+            var builder = new ASTBuilder(input.getChars());
             return (ProgramNode)builder.visit(tree);
 
-        } catch (FileNotFoundException ex) {
-            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, path);
-        } catch (IOException ex) {
-            Utilities.fatalError(Utilities.ErrorCode.EXCEPTION_LEXER, ex);
+        } catch (CompilationError ex) {
+            throw ex;
         } catch (Exception ex) {
             ex.printStackTrace();
             Utilities.fatalError(Utilities.ErrorCode.EXCEPTION_PARSER, ex);
         }
         return null;
     }
+
+    /** Parses the tokens of a parser, first with SLL prediction, then with full LL if that fails
+     * <p>
+     * SLL prediction is much faster, and gives the same tree as LL for any input it parses
+     * without an error. It fails on syntax errors, and on the rare valid input it cannot
+     * decide, so those are parsed again with LL, which reports the errors. Both parsers
+     * share the DFA cache of SolidityParser, which is static, so predictions learned by one
+     * compilation speed up every later one in the same JVM.
+     *
+     * @param parser a parser over a token stream
+     * @param errors the listener syntax errors are reported to
+     * */
+    static SolidityParser.ProgramContext parse(SolidityParser parser, SyntaxErrorCollector errors) {
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        try {
+            return parser.program();
+        } catch (ParseCancellationException ex) {
+            // the stream keeps the tokens lexed so far, so the lexer reports no error twice
+            parser.reset();
+            parser.lexErrors = 0;
+            parser.addErrorListener(errors);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.program();
+        }
+    }
 }
@@ -0,0 +1,577 @@
+import org.bouncycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+// gas and stack bounds of every path from a state to the end of the call
+class PathBounds {
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    // an infeasible state has no path that stops, e.g. one that only reverts
+    public static final PathBounds INFEASIBLE = new PathBounds(UNBOUNDED, -1, -1);
+
+    // a state reached through recursion, which has no static bound
+    public static final PathBounds RECURSIVE = new PathBounds(UNBOUNDED, UNBOUNDED, UNBOUNDED);
+
+    // a state past the budget of the analysis, whose paths were not followed
+    public static final PathBounds INCOMPLETE = new PathBounds(UNBOUNDED, UNBOUNDED, UNBOUNDED);
+
+    public long minGas;
+    public long maxGas;
+    public long maxStack;
+
+    PathBounds(long minGas, long maxGas, long maxStack) {
+        this.minGas = minGas;
+        this.maxGas = maxGas;
+        this.maxStack = maxStack;
+    }
+
+    public boolean isFeasible() {
+        return maxGas != -1;
+    }
+
+    public PathBounds merge(PathBounds other) {
+        if (!other.isFeasible())
+            return this;
+        if (!isFeasible())
+            return other;
+        return new PathBounds(Math.min(minGas, other.minGas), Math.max(maxGas, other.maxGas),
+                Math.max(maxStack, other.maxStack));
+    }
+
+    public PathBounds add(long gas, long stack) {
+        if (!isFeasible())
+            return this;
+        return new PathBounds(minGas == UNBOUNDED ? UNBOUNDED : minGas + gas,
+                maxGas == UNBOUNDED ? UNBOUNDED : maxGas + gas, Math.max(maxStack, stack));
+    }
+
+    // these paths followed by the paths of next
+    public PathBounds then(PathBounds next) {
+        if (!isFeasible() || !next.isFeasible())
+            return INFEASIBLE;
+        return new PathBounds(sum(minGas, next.minGas), sum(maxGas, next.maxGas), Math.max(maxStack, next.maxStack));
+    }
+
+    private static long sum(long a, long b) {
+        return a == UNBOUNDED || b == UNBOUNDED ? UNBOUNDED : a + b;
+    }
+
+    // the same paths run with depth more values under them
+    public PathBounds above(int depth) {
+        if (!isFeasible() || maxStack == UNBOUNDED)
+            return this;
+        return new PathBounds(minGas, maxGas, maxStack + depth);
+    }
+}
+
+// bounds of the paths from a state within a frame: those that stop, and those that jump to the
+// return address the frame was entered with, keyed by the stack they leave the caller
+class FrameBounds {
+    // a path that reads or computes with what is under the frame, which only the caller can follow
+    public static final FrameBounds ESCAPED = new FrameBounds();
+
+    public PathBounds stops = PathBounds.INFEASIBLE;
+    public HashMap<List<StackValue>, PathBounds> returns = new HashMap<>();
+
+    public static FrameBounds stop(PathBounds bounds) {
+        var frame = new FrameBounds();
+        frame.stops = bounds;
+        return frame;
+    }
+
+    public static FrameBounds exit(List<StackValue> stack, PathBounds bounds) {
+        var frame = new FrameBounds();
+        frame.returns.put(List.copyOf(stack), bounds);
+        return frame;
+    }
+
+    public boolean isEscaped() {
+        return this == ESCAPED;
+    }
+
+    public FrameBounds merge(FrameBounds other) {
+        if (isEscaped() || other.isEscaped())
+            return ESCAPED;
+
+        var frame = stop(stops.merge(other.stops));
+        frame.returns.putAll(returns);
+        other.returns.forEach((stack, bounds) -> frame.returns.merge(stack, bounds, PathBounds::merge));
+        return frame;
+    }
+
+    public FrameBounds add(long gas, long stack) {
+        return map(x -> x.add(gas, stack));
+    }
+
+    // these paths preceded by the paths of before
+    public FrameBounds after(PathBounds before) {
+        return map(before::then);
+    }
+
+    private FrameBounds map(UnaryOperator<PathBounds> f) {
+        if (isEscaped())
+            return this;
+
+        var frame = stop(f.apply(stops));
+        returns.forEach((stack, bounds) -> frame.returns.put(stack, f.apply(bounds)));
+        return frame;
+    }
+}
+
+// a stack value, whose value is null if it is not known statically
+class StackValue {
+    public static final StackValue UNKNOWN = new StackValue(null, false);
+
+    // the return address a frame was entered with, whatever the caller pushed
+    public static final StackValue RETURN = new StackValue(BigInteger.valueOf(-1), true);
+
+    public BigInteger value;
+
+    // true if pushed as is rather than computed, as return addresses are
+    public boolean pushed;
+
+    StackValue(BigInteger value, boolean pushed) {
+        this.value = value;
+        this.pushed = pushed;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof StackValue x && Objects.equals(value, x.value) && pushed == x.pushed;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value, pushed);
+    }
+}
+
+class MethodBounds {
+    public DispatchCase entry;
+    public PathBounds bounds;
+
+    // true if the analysis ran out of budget, so some paths were not followed
+    public boolean incomplete;
+
+    MethodBounds(DispatchCase entry, PathBounds bounds, boolean incomplete) {
+        this.entry = entry;
+        this.bounds = bounds;
+        this.incomplete = incomplete;
+    }
+}
+
+/** Computes the static gas and stack depth of each public method from the linked runtime code.
+ * <p>
+ * Each method is analyzed from the start of the runtime code, with calldata holding its
+ * selector, so the bounds include dispatching and decoding the arguments. Stack values are
+ * tracked as constants where they are known, which resolves the jumps of the dispatcher,
+ * of internal calls and of returns, the latter jumping to a return address pushed by the caller.
+ * Every other condition is unknown, so both of its branches are followed. Literals that are
+ * not jump targets are forgotten when jumping, so the branches of a ternary join again.
+ * <p>
+ * A called method only uses the stack above its return address until it jumps to it, so it is
+ * analyzed once per entry and arguments, whoever the caller, with the address standing for any
+ * return address. The caller then continues from its return address with each stack the call
+ * returns with. A frame that reaches under its return address or computes with it is followed
+ * with its caller's stack instead.
+ * <p>
+ * Paths that revert are not counted. A path that reaches a block again, with the stack it was
+ * first reached with still at the bottom of its stack, recurses and is cut there, so the minimum
+ * gas is that of the paths that do not recurse, while the maximum gas and stack depth are
+ * reported as unbounded. Paths too long to follow and methods with too many states are cut
+ * too, and their method is reported as incomplete rather than recursive.
+ * <p>
+ * Reaching a JUMPDEST with the same return addresses on the stack but at a different height,
+ * popping an empty stack and jumping to an unknown address are compiler bugs, and recorded
+ * as errors.
+ * */
+public class GasAnalyzer {
+    private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(256);
+    private static final int MAX_STACK = 1024;
+
+    // blocks followed along one path, and states analyzed per method
+    private static final int MAX_PATH = 1000;
+    private static final int MAX_STATES = 20000;
+
+    private byte[] code;
+    private HashSet<Integer> jumpdests = new HashSet<>();
+
+    // number of arguments of each method, by the address of its JUMPDEST
+    private Map<Integer, Integer> entries;
+
+    public List<MethodBounds> methods = new ArrayList<>();
+    public List<String> errors = new ArrayList<>();
+
+    // per method being analyzed
+    private BigInteger selector;
+    private HashMap<List<Object>, FrameBounds> memo;
+    private HashMap<Integer, List<List<StackValue>>> pending;
+    private int path;
+    private int states;
+    private boolean incomplete;
+
+    // stack height at each JUMPDEST, keyed by the return addresses on the stack and where they are
+    private HashMap<List<Object>, Integer> heights;
+
+    /** Analyzes each public method
+     *
+     * @param runtimeCode the linked runtime code
+     * @param cases       the dispatcher's entry for each public method
+     * @param entries     the number of arguments of each method called by jumping to its JUMPDEST,
+     *                    by the address of the JUMPDEST
+     * */
+    public GasAnalyzer(String runtimeCode, List<DispatchCase> cases, Map<Integer, Integer> entries) {
+        code = Hex.decode(runtimeCode);
+        this.entries = entries;
+
+        for (int pc = 0; pc < code.length; pc += 1 + getImmediateWidth(pc)) {
+            if ((code[pc] & 0xff) == OpCode.JUMPDEST)
+                jumpdests.add(pc);
+        }
+
+        for (var entry : cases) {
+            selector = BigInteger.valueOf(entry.value);
+            memo = new HashMap<>();
+            pending = new HashMap<>();
+            heights = new HashMap<>();
+            states = 0;
+            incomplete = false;
+
+            var bounds = analyze(0, new ArrayList<>()).stops;
+            methods.add(new MethodBounds(entry, bounds, incomplete));
+        }
+    }
+
+    private int getImmediateWidth(int pc) {
+        var opcode = code[pc] & 0xff;
+        return opcode > OpCode.PUSH && opcode <= OpCode.PUSH + 32 ? opcode - OpCode.PUSH : 0;
+    }
+
+    private void error(String msg) {
+        if (!errors.contains(msg))
+            errors.add(msg);
+    }
+
+    private boolean isJumpdest(BigInteger value) {
+        return value != null && value.bitLength() < 32 && jumpdests.contains(value.intValue());
+    }
+
+    private boolean isReturnAddress(StackValue value) {
+        return value == StackValue.RETURN || value.pushed && isJumpdest(value.value);
+    }
+
+    // the return addresses on the stack, and where they are, identify the call a JUMPDEST is
+    // reached in, so a constant that happens to equal an address does not pass for another call
+    private List<Object> getContext(int pc, List<StackValue> stack) {
+        var context = new ArrayList<Object>();
+        context.add(pc);
+        for (int i = 0; i < stack.size(); i++) {
+            var entry = stack.get(i);
+            if (isReturnAddress(entry)) {
+                context.add(i);
+                context.add(entry.value);
+            }
+        }
+        return context;
+    }
+
+    // the block is being run already with a stack that the current one only grows
+    private boolean isRecursing(int pc, List<StackValue> stack) {
+        for (var other : pending.getOrDefault(pc, new ArrayList<>())) {
+            if (other.size() <= stack.size() && other.equals(stack.subList(0, other.size())))
+                return true;
+        }
+        return false;
+    }
+
+    // runs the block starting at pc, then the blocks it may continue with
+    private FrameBounds analyze(int pc, List<StackValue> stack) {
+        stack = stack.stream().map(x -> x.pushed && !isReturnAddress(x) ? StackValue.UNKNOWN : x).toList();
+
+        var key = new ArrayList<Object>(stack);
+        key.add(pc);
+
+        var result = memo.get(key);
+        if (result != null)
+            return result;
+        if (stack.size() > MAX_STACK || isRecursing(pc, stack))
+            return FrameBounds.stop(PathBounds.RECURSIVE);
+        if (path >= MAX_PATH || states >= MAX_STATES) {
+            incomplete = true;
+            return FrameBounds.stop(PathBounds.INCOMPLETE);
+        }
+
+        var running = pending.computeIfAbsent(pc, x -> new ArrayList<>());
+        running.add(stack);
+        path++;
+        states++;
+        result = run(pc, new ArrayList<>(stack));
+        path--;
+        running.remove(running.size() - 1);
+
+        memo.put(key, result);
+        return result;
+    }
+
+    // until it jumps to its return address, a method only uses the stack above it, so the paths
+    // from its entry are those of a frame entered with any return address, and a method is
+    // analyzed once for all of its calls with the same arguments
+    private FrameBounds call(int pc, List<StackValue> stack) {
+        var arguments = entries.get(pc);
+        var top = arguments != null ? stack.size() - 1 - arguments : -1;
+        if (top < 0 || stack.get(top) == StackValue.RETURN || !isReturnAddress(stack.get(top)))
+            return analyze(pc, stack);
+
+        var frame = new ArrayList<StackValue>();
+        frame.add(StackValue.RETURN);
+        frame.addAll(stack.subList(top + 1, stack.size()));
+
+        var bounds = analyze(pc, frame);
+        if (bounds.isEscaped())
+            return analyze(pc, stack);
+        return resume(bounds, stack.subList(0, top), stack.get(top));
+    }
+
+    // continues the caller at the return address with each stack the frame returns with
+    private FrameBounds resume(FrameBounds frame, List<StackValue> caller, StackValue address) {
+        var result = FrameBounds.stop(frame.stops.above(caller.size()));
+        for (var exit : frame.returns.entrySet()) {
+            var stack = new ArrayList<>(caller);
+            for (var value : exit.getKey())
+                stack.add(value == StackValue.RETURN ? address : value);
+
+            var bounds = exit.getValue().above(caller.size());
+            result = result.merge(analyze(address.value.intValue(), stack).after(bounds));
+        }
+        return result;
+    }
+
+    private FrameBounds run(int pc, ArrayList<StackValue> stack) {
+        long gas = 0;
+        long height = stack.size();
+
+        // a frame only moves its return address around and jumps to it, and never reaches under it
+        var frame = stack.contains(StackValue.RETURN);
+
+        while (true) {
+            // running off the end of the code stops
+            if (pc >= code.length)
+                return FrameBounds.stop(new PathBounds(gas, gas, height));
+
+            var opcode = code[pc] & 0xff;
+            var width = getImmediateWidth(pc);
+            gas += OpCode.gas(opcode);
+
+            if (opcode == OpCode.JUMPDEST) {
+                var context = getContext(pc, stack);
+                var previous = heights.putIfAbsent(context, stack.size());
+                if (previous != null && previous != stack.size())
+                    error(String.format("inconsistent stack height at 0x%x: %d and %d", pc, previous, stack.size()));
+            } else if (opcode >= OpCode.PUSH && opcode <= OpCode.PUSH + 32) {
+                stack.add(new StackValue(new BigInteger(1, Arrays.copyOfRange(code, pc + 1, pc + 1 + width)), true));
+            } else if (opcode >= OpCode.DUP && opcode < OpCode.DUP + 16) {
+                var n = opcode - OpCode.DUP + 1;
+                if (!require(pc, stack, n, frame))
+                    return underflow(frame);
+                stack.add(stack.get(stack.size() - n));
+            } else if (opcode >= OpCode.SWAP && opcode < OpCode.SWAP + 16) {
+                var n = opcode - OpCode.SWAP + 1;
+                if (!require(pc, stack, n + 1, frame))
+                    return underflow(frame);
+                var top = stack.size() - 1;
+                var value = stack.get(top);
+                stack.set(top, stack.get(top - n));
+                stack.set(top - n, value);
+            } else if (opcode == OpCode.STOP || opcode == OpCode.RETURN) {
+                return FrameBounds.stop(new PathBounds(gas, gas, height));
+            } else if (opcode == OpCode.REVERT) {
+                return FrameBounds.stop(PathBounds.INFEASIBLE);
+            } else if (opcode == OpCode.JUMP) {
+                if (!require(pc, stack, 1, frame))
+                    return underflow(frame);
+                var dest = stack.remove(stack.size() - 1);
+                if (dest == StackValue.RETURN)
+                    return FrameBounds.exit(stack, new PathBounds(gas, gas, height));
+
+                var target = getTarget(pc, dest.value);
+                if (target == -1)
+                    return FrameBounds.stop(PathBounds.INFEASIBLE);
+                return call(target, stack).add(gas, height);
+            } else if (opcode == OpCode.JUMPI) {
+                if (!require(pc, stack, 2, frame))
+                    return underflow(frame);
+                var dest = stack.remove(stack.size() - 1);
+                var cond = stack.remove(stack.size() - 1);
+                if (dest == StackValue.RETURN || cond == StackValue.RETURN)
+                    return FrameBounds.ESCAPED;
+
+                var result = FrameBounds.stop(PathBounds.INFEASIBLE);
+                if (cond.value == null || cond.value.signum() != 0) {
+                    var target = getTarget(pc, dest.value);
+                    if (target != -1)
+                        result = result.merge(analyze(target, stack));
+                }
+                if (cond.value == null || cond.value.signum() == 0)
+                    result = result.merge(analyze(pc + 1, stack));
+                return result.add(gas, height);
+            } else {
+                var stopped = evaluate(pc, opcode, stack, frame);
+                if (stopped != null)
+                    return stopped;
+            }
+
+            height = Math.max(height, stack.size());
+            pc += 1 + width;
+        }
+    }
+
+    // a frame reaching under its stack escapes to its caller, anything else is a compiler bug
+    private boolean require(int pc, List<StackValue> stack, int n, boolean frame) {
+        if (stack.size() >= n)
+            return true;
+        if (!frame)
+            error(String.format("stack underflow at 0x%x", pc));
+        return false;
+    }
+
+    private static FrameBounds underflow(boolean frame) {
+        return frame ? FrameBounds.ESCAPED : FrameBounds.stop(PathBounds.INFEASIBLE);
+    }
+
+    private int getTarget(int pc, BigInteger dest) {
+        if (isJumpdest(dest))
+            return dest.intValue();
+        error(String.format("unresolved jump at 0x%x", pc));
+        return -1;
+    }
+
+    // applies an opcode that neither branches nor only shuffles the stack, or returns how the
+    // path ends if it cannot
+    private FrameBounds evaluate(int pc, int opcode, List<StackValue> stack, boolean frame) {
+        int pops;
+        if (opcode == OpCode.CALLDATASIZE)
+            pops = 0;
+        else if (opcode == OpCode.POP || opcode == OpCode.ISZERO || opcode == OpCode.NOT
+                || opcode == OpCode.CALLDATALOAD || opcode == OpCode.SLOAD)
+            pops = 1;
+        else if (opcode == OpCode.CODECOPY)
+            pops = 3;
+        else if (OpCode.gas(opcode) != 0)
+            pops = 2;
+        else {
+            error(String.format("unknown opcode 0x%02x at 0x%x", opcode, pc));
+            return FrameBounds.stop(PathBounds.INFEASIBLE);
+        }
+
+        if (!require(pc, stack, pops, frame))
+            return underflow(frame);
+
+        var args = new BigInteger[pops];
+        for (int i = 0; i < pops; i++) {
+            var arg = stack.remove(stack.size() - 1);
+            if (arg == StackValue.RETURN)
+                return FrameBounds.ESCAPED;
+            args[i] = arg.value;
+        }
+
+        if (opcode == OpCode.POP || opcode == OpCode.SSTORE || opcode == OpCode.CODECOPY)
+            return null;
+
+        var value = getValue(opcode, args);
+        stack.add(value != null ? new StackValue(value, false) : StackValue.UNKNOWN);
+        return null;
+    }
+
+    private BigInteger getValue(int opcode, BigInteger[] args) {
+        if (opcode == OpCode.CALLDATASIZE || opcode == OpCode.SLOAD)
+            return null;
+
+        // the selector is the only calldata the dispatcher reads at offset 0
+        if (opcode == OpCode.CALLDATALOAD)
+            return BigInteger.ZERO.equals(args[0]) ? selector.shiftLeft(224) : null;
+
+        for (var arg : args) {
+            if (arg == null)
+                return null;
+        }
+
+        if (opcode == OpCode.ISZERO)
+            return args[0].signum() == 0 ? BigInteger.ONE : BigInteger.ZERO;
+        if (opcode == OpCode.NOT)
+            return MODULUS.subtract(BigInteger.ONE).subtract(args[0]);
+
+        var a = args[0];
+        var b = args[1];
+
+        if (opcode == OpCode.ADD)
+            return a.add(b).mod(MODULUS);
+        if (opcode == OpCode.SUB)
+            return a.subtract(b).mod(MODULUS);
+        if (opcode == OpCode.MUL)
+            return a.multiply(b).mod(MODULUS);
+        if (opcode == OpCode.DIV)
+            return b.signum() == 0 ? BigInteger.ZERO : a.divide(b);
+        if (opcode == OpCode.AND)
+            return a.and(b);
+        if (opcode == OpCode.OR)
+            return a.or(b);
+        if (opcode == OpCode.LT)
+            return a.compareTo(b) < 0 ? BigInteger.ONE : BigInteger.ZERO;
+        if (opcode == OpCode.GT)
+            return a.compareTo(b) > 0 ? BigInteger.ONE : BigInteger.ZERO;
+        if (opcode == OpCode.EQ)
+            return a.equals(b) ? BigInteger.ONE : BigInteger.ZERO;
+        if (opcode == OpCode.SHR)
+            return a.compareTo(BigInteger.valueOf(256)) >= 0 ? BigInteger.ZERO : b.shiftRight(a.intValue());
+        if (opcode == OpCode.SHL)
+            return a.compareTo(BigInteger.valueOf(256)) >= 0 ? BigInteger.ZERO : b.shiftLeft(a.intValue()).mod(MODULUS);
+        if (opcode == OpCode.BYTE)
+            return a.compareTo(BigInteger.valueOf(32)) >= 0 ? BigInteger.ZERO
+                    : b.shiftRight(8 * (31 - a.intValue())).and(BigInteger.valueOf(0xff));
+
+        return null;
+    }
+
+    private static String format(long value) {
+        return value == PathBounds.UNBOUNDED ? "null" : Long.toString(value);
+    }
+
+    /** Returns the bounds as JSON, one entry per public method, followed by any errors found
+     * <p>
+     * Unbounded values, i.e. those of methods that recurse, are null, as are those of methods
+     * whose analysis ran out of budget, which are marked incomplete.
+     * */
+    public String toString() {
+        var out = new StringBuilder();
+        out.append("{\n  \"methods\": [");
+
+        var first = true;
+        for (var method : methods) {
+            out.append(first ? "\n" : ",\n");
+            out.append(String.format("    {\"name\": \"%s\", \"selector\": \"%s\", \"minGas\": %s, \"maxGas\": %s, \"maxStack\": %s, \"incomplete\": %s}",
+                    method.entry.method.getName(), method.entry.selector, format(method.bounds.minGas),
+                    format(method.bounds.maxGas), format(method.bounds.maxStack), method.incomplete));
+            first = false;
+        }
+
+        out.append("\n  ],\n  \"errors\": [");
+
+        first = true;
+        for (var error : errors) {
+            out.append(first ? "\n" : ",\n");
+            out.append(String.format("    \"%s\"", error));
+            first = false;
+        }
+
+        out.append(first ? "]\n}\n" : "\n  ]\n}\n");
+        return out.toString();
+    }
+}
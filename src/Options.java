@@ -0,0 +1,132 @@
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class Options implements Cloneable {
+    public enum Dispatch {
+        AUTO,
+        LINEAR,
+        BINARY,
+        TABLE
+    }
+
+    public String source;
+    public Dispatch dispatch = Dispatch.AUTO;
+    public boolean fold = true;
+    public boolean storageCache = true;
+    public boolean inline = true;
+    public int inlineSize = 24;
+    public Set<String> inlineAlways = Set.of();
+    public Set<String> inlineNever = Set.of();
+    public boolean peephole = true;
+    public boolean batchCalldata = true;
+    public String profile;
+    public boolean checkStack;
+
+    // a directory of compiled contracts to reuse, and its size in megabytes
+    public String cache;
+    public int cacheSize = 256;
+
+    /** Parses the command-line arguments
+     * <p>
+     * The first argument without a leading "--" is the source file,
+     * every other argument is a "--name=value" option.
+     *
+     * @param args the command-line arguments
+     * */
+    public static Options parse(String[] args) {
+        var options = new Options();
+
+        for (var arg : args) {
+            if (!arg.startsWith("--")) {
+                if (options.source != null)
+                    Utilities.fatalError("Unexpected argument '" + arg + "'");
+                options.source = arg;
+                continue;
+            }
+
+            var eq = arg.indexOf('=');
+            var name = eq == -1 ? arg.substring(2) : arg.substring(2, eq);
+            var value = eq == -1 ? "" : arg.substring(eq + 1);
+
+            switch (name) {
+                case "dispatch" -> options.dispatch = parseEnum(Dispatch.class, name, value);
+                case "fold" -> options.fold = parseSwitch(name, value);
+                case "storage-cache" -> options.storageCache = parseSwitch(name, value);
+                case "inline" -> options.inline = parseSwitch(name, value);
+                case "inline-size" -> options.inlineSize = parseInt(name, value);
+                case "inline-always" -> options.inlineAlways = parseList(value);
+                case "inline-never" -> options.inlineNever = parseList(value);
+                case "peephole" -> options.peephole = parseSwitch(name, value);
+                case "batch-calldata" -> options.batchCalldata = parseSwitch(name, value);
+                case "profile" -> options.profile = value;
+                case "check-stack" -> options.checkStack = parseSwitch(name, value);
+                case "cache" -> options.cache = value;
+                case "cache-size" -> options.cacheSize = parseInt(name, value);
+                default -> Utilities.fatalError("Unknown option '--" + name + "'");
+            }
+        }
+
+        if (options.source == null)
+            Utilities.fatalError("Must specify (.SOL) source file");
+
+        return options;
+    }
+
+    /** Returns the options that affect the generated code, other than the profile, as a string
+     * <p>
+     * Two sets of options have the same string exactly when they generate the same code
+     * from the same source and profile.
+     * */
+    public String getCodeKey() {
+        return dispatch + " " + fold + " " + storageCache + " " + inline + " " + inlineSize + " " + new TreeSet<>(inlineAlways)
+                + " " + new TreeSet<>(inlineNever) + " " + peephole + " " + batchCalldata;
+    }
+
+    /** Returns a copy of the options for another source
+     *
+     * @param source the source file, or the name of a source held in memory
+     * */
+    public Options withSource(String source) {
+        try {
+            var options = (Options) clone();
+            options.source = source;
+            return options;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean parseSwitch(String name, String value) {
+        return switch (value) {
+            case "on", "true" -> true;
+            case "off", "false" -> false;
+            default -> {
+                Utilities.fatalError("Invalid value '" + value + "' for option '--" + name + "', expected on or off");
+                yield false;
+            }
+        };
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Utilities.fatalError("Invalid value '" + value + "' for option '--" + name + "', expected a number");
+            return 0;
+        }
+    }
+
+    private static Set<String> parseList(String value) {
+        return value.isEmpty() ? Set.of() : Set.copyOf(List.of(value.split(",")));
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String name, String value) {
+        for (var constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value))
+                return constant;
+        }
+        Utilities.fatalError("Invalid value '" + value + "' for option '--" + name + "'");
+        return null;
+    }
+}
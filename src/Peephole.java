@@ -0,0 +1,255 @@
+import java.util.ArrayList;
+import java.util.List;
+
+interface PeepholeRewrite {
+    /** Returns the instructions replacing the window, or null if the rule does not match
+     *
+     * @param window the instructions being matched, as many as the rule's length
+     * @param peephole the optimizer, for looking up label references
+     * */
+    List<Instruction> apply(List<Instruction> window, Peephole peephole);
+}
+
+class PeepholeRule {
+    public String name;
+    public int length;
+    public PeepholeRewrite rewrite;
+
+    // false if the rule only removes code that is never executed
+    public boolean reachable;
+
+    public int applied;
+    public int bytes;
+    public int gas;
+
+    PeepholeRule(String name, int length, boolean reachable, PeepholeRewrite rewrite) {
+        this.name = name;
+        this.length = length;
+        this.reachable = reachable;
+        this.rewrite = rewrite;
+    }
+
+    PeepholeRule(String name, int length, PeepholeRewrite rewrite) {
+        this(name, length, true, rewrite);
+    }
+}
+
+/** Pattern-based peephole optimizer over the Assembler's instruction list.
+ * <p>
+ * Each rule matches a fixed-size window of instructions and returns its replacement.
+ * Passes are repeated until no rule matches, since one rewrite can expose another.
+ * Windows containing a fixed-width label reference are never touched, since the code
+ * around those relies on instruction sizes. To add a rule, append it to the table below.
+ * <p>
+ * The code generator runs it on the dispatcher and on each method on its own, see
+ * Cgen.emitMethods, so a rule that matches across the JUMPDEST of a method has to be
+ * handled there as well.
+ * */
+public class Peephole {
+    private static boolean is(Instruction instruction, int opcode) {
+        return instruction.opcode == opcode;
+    }
+
+    private static boolean isConstant(Instruction instruction) {
+        return instruction.isPush() || is(instruction, Instruction.LABEL);
+    }
+
+    private static boolean isTerminator(Instruction instruction) {
+        return is(instruction, OpCode.JUMP) || is(instruction, OpCode.STOP)
+                || is(instruction, OpCode.REVERT) || is(instruction, OpCode.RETURN);
+    }
+
+    private final List<PeepholeRule> rules = List.of(
+            // DUPn POP ->
+            new PeepholeRule("dup-pop", 2, (w, p) ->
+                    w.get(0).isDup() && is(w.get(1), OpCode.POP) ? List.of() : null),
+
+            // PUSH x POP ->
+            new PeepholeRule("push-pop", 2, (w, p) ->
+                    isConstant(w.get(0)) && is(w.get(1), OpCode.POP) ? List.of() : null),
+
+            // DUPn SWAPn POP -> (stores a slot into itself)
+            new PeepholeRule("dup-swap-pop", 3, (w, p) ->
+                    w.get(0).isDup() && w.get(1).isSwap() && is(w.get(2), OpCode.POP)
+                            && w.get(0).opcode - OpCode.DUP == w.get(1).opcode - OpCode.SWAP ? List.of() : null),
+
+            // DUPn SWAP1 POP -> POP DUP(n-1)
+            new PeepholeRule("dup-swap1-pop", 3, (w, p) ->
+                    w.get(0).isDup() && w.get(0).opcode > OpCode.DUP && is(w.get(1), OpCode.SWAP)
+                            && is(w.get(2), OpCode.POP)
+                            ? List.of(w.get(2), new Instruction(w.get(0).opcode - 1)) : null),
+
+            // PUSH x SWAP1 POP -> POP PUSH x
+            new PeepholeRule("push-swap1-pop", 3, (w, p) ->
+                    isConstant(w.get(0)) && is(w.get(1), OpCode.SWAP) && is(w.get(2), OpCode.POP)
+                            ? List.of(w.get(2), w.get(0)) : null),
+
+            // SWAPn SWAPn ->
+            new PeepholeRule("swap-swap", 2, (w, p) ->
+                    w.get(0).isSwap() && w.get(0).opcode == w.get(1).opcode ? List.of() : null),
+
+            // ISZERO ISZERO ISZERO -> ISZERO
+            new PeepholeRule("not-not-not", 3, (w, p) ->
+                    is(w.get(0), OpCode.ISZERO) && is(w.get(1), OpCode.ISZERO) && is(w.get(2), OpCode.ISZERO)
+                            ? List.of(w.get(2)) : null),
+
+            // ISZERO ISZERO PUSH label JUMPI -> PUSH label JUMPI
+            new PeepholeRule("not-not-jumpi", 4, (w, p) ->
+                    is(w.get(0), OpCode.ISZERO) && is(w.get(1), OpCode.ISZERO)
+                            && is(w.get(2), Instruction.LABEL) && is(w.get(3), OpCode.JUMPI)
+                            ? List.of(w.get(2), w.get(3)) : null),
+
+            // EQ ISZERO PUSH label JUMPI -> SUB PUSH label JUMPI
+            new PeepholeRule("eq-not-jumpi", 4, (w, p) ->
+                    is(w.get(0), OpCode.EQ) && is(w.get(1), OpCode.ISZERO)
+                            && is(w.get(2), Instruction.LABEL) && is(w.get(3), OpCode.JUMPI)
+                            ? List.of(new Instruction(OpCode.SUB), w.get(2), w.get(3)) : null),
+
+            // PUSH label JUMP label: -> label:
+            new PeepholeRule("jump-next", 3, (w, p) ->
+                    is(w.get(0), Instruction.LABEL) && is(w.get(1), OpCode.JUMP)
+                            && is(w.get(2), OpCode.JUMPDEST) && w.get(0).arg == w.get(2).arg
+                            ? List.of(w.get(2)) : null),
+
+            // PUSH label JUMPI label: -> POP label:
+            new PeepholeRule("jumpi-next", 3, (w, p) ->
+                    is(w.get(0), Instruction.LABEL) && is(w.get(1), OpCode.JUMPI)
+                            && is(w.get(2), OpCode.JUMPDEST) && w.get(0).arg == w.get(2).arg
+                            ? List.of(new Instruction(OpCode.POP), w.get(2)) : null),
+
+            // JUMPDEST of a label nobody pushes ->
+            new PeepholeRule("dead-jumpdest", 1, (w, p) ->
+                    is(w.get(0), OpCode.JUMPDEST) && w.get(0).arg != -1 && p.getReferences(w.get(0).arg) == 0
+                            ? List.of() : null),
+
+            // code between a terminator and the next JUMPDEST is never executed
+            new PeepholeRule("unreachable", 2, false, (w, p) ->
+                    isTerminator(w.get(0)) && !is(w.get(1), OpCode.JUMPDEST) ? List.of(w.get(0)) : null)
+    );
+
+    private int[] references = new int[0];
+
+    public int getReferences(int label) {
+        return label < references.length ? references[label] : 0;
+    }
+
+    private void countReferences(List<Instruction> code) {
+        var max = -1;
+        for (var instruction : code) {
+            if (is(instruction, Instruction.LABEL))
+                max = Math.max(max, instruction.arg);
+        }
+
+        references = new int[max + 1];
+        for (var instruction : code) {
+            if (is(instruction, Instruction.LABEL))
+                references[instruction.arg]++;
+        }
+    }
+
+    private static boolean isPinned(List<Instruction> window) {
+        for (var instruction : window) {
+            if (is(instruction, Instruction.LABEL) && instruction.width != 0)
+                return true;
+        }
+        return false;
+    }
+
+    public void run(Assembler asm) {
+        asm.setInstructions(optimize(asm.getInstructions()));
+    }
+
+    private List<Instruction> optimize(List<Instruction> code) {
+        var changed = true;
+        while (changed) {
+            changed = false;
+
+            // counts only go down during a pass, so a zero is never stale
+            countReferences(code);
+
+            var out = new ArrayList<Instruction>(code.size());
+            for (int i = 0; i < code.size(); ) {
+                var matched = false;
+
+                for (var rule : rules) {
+                    if (i + rule.length > code.size())
+                        continue;
+
+                    var window = code.subList(i, i + rule.length);
+                    if (isPinned(window))
+                        continue;
+
+                    var replacement = rule.rewrite.apply(window, this);
+                    if (replacement == null)
+                        continue;
+
+                    record(rule, window, replacement);
+                    out.addAll(replacement);
+                    i += rule.length;
+                    matched = changed = true;
+                    break;
+                }
+
+                if (!matched)
+                    out.add(code.get(i++));
+            }
+            code = out;
+        }
+        return code;
+    }
+
+    private static void record(PeepholeRule rule, List<Instruction> window, List<Instruction> replacement) {
+        rule.applied++;
+        for (var instruction : window) {
+            rule.bytes += instruction.getSize();
+            rule.gas += rule.reachable ? instruction.getGas() : 0;
+        }
+        for (var instruction : replacement) {
+            rule.bytes -= instruction.getSize();
+            rule.gas -= rule.reachable ? instruction.getGas() : 0;
+        }
+    }
+
+    /** Counts a rewrite made outside of run, by the rule with the given name
+     *
+     * @param name        the name of the rule
+     * @param window      the instructions the rule matched
+     * @param replacement the instructions they were replaced with
+     * */
+    public void record(String name, List<Instruction> window, List<Instruction> replacement) {
+        for (var rule : rules) {
+            if (rule.name.equals(name))
+                record(rule, window, replacement);
+        }
+    }
+
+    /** Adds the rewrites another optimizer made to those of this one
+     * */
+    public void add(Peephole other) {
+        for (int i = 0; i < rules.size(); i++) {
+            rules.get(i).applied += other.rules.get(i).applied;
+            rules.get(i).bytes += other.rules.get(i).bytes;
+            rules.get(i).gas += other.rules.get(i).gas;
+        }
+    }
+
+    /** Lists how often each rule applied and the bytes and static gas it saved
+     * <p>
+     * Relaxed label references are counted as PUSH1, and code removed as
+     * unreachable saves no gas since it was never executed.
+     * */
+    public String toString() {
+        var bytes = rules.stream().mapToInt(x -> x.bytes).sum();
+        var gas = rules.stream().mapToInt(x -> x.gas).sum();
+
+        var out = new StringBuilder();
+        out.append(String.format("Peephole: saved %d bytes, %d static gas", bytes, gas));
+
+        for (var rule : rules) {
+            if (rule.applied != 0)
+                out.append(String.format("%n  %s: %d times, %d bytes, %d gas", rule.name, rule.applied, rule.bytes, rule.gas));
+        }
+
+        return out.toString();
+    }
+}
@@ -1,68 +1,108 @@
 import ast.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
 
-class SymbolNode<D> {
-    private final SymbolNode<D> parent;
-    private final Map<Symbol, D> symbols;
+// a name's type and binding where it is declared
+class Definition {
+    public Symbol type;
+    public Binding binding;
 
-    public SymbolNode(SymbolNode<D> parent) {
-        this.parent = parent;
-        this.symbols = new HashMap<>();
+    Definition(Symbol type, Binding binding) {
+        this.type = type;
+        this.binding = binding;
     }
+}
+
+// the innermost declaration of a name, linked to the one it shadows
+class ScopeEntry<D> {
+    public D value;
+    public int scope;
+    public ScopeEntry<D> shadowed;
 
-    public SymbolNode() {
-        this(null);
+    ScopeEntry(D value, int scope, ScopeEntry<D> shadowed) {
+        this.value = value;
+        this.scope = scope;
+        this.shadowed = shadowed;
     }
+}
+
+/** Nested scopes of names, indexed by the index of their symbols.
+ * <p>
+ * Each name has a chain of its declarations in the open scopes, innermost first, so
+ * lookups take one array access wherever the name was declared. Leaving a scope unlinks
+ * the declarations made in it, in reverse order.
+ * */
+class SymbolTable<D> {
+    private ArrayList<ScopeEntry<D>> entries = new ArrayList<>();
 
-    public SymbolNode<D> nextScope() {
-        return new SymbolNode<>(this);
+    // symbols declared in the open scopes in order, and where each scope starts among them
+    private ArrayList<Symbol> declared = new ArrayList<>();
+    private ArrayList<Integer> scopes = new ArrayList<>();
+
+    public void enterScope() {
+        scopes.add(declared.size());
+    }
+
+    public void exitScope() {
+        var start = scopes.remove(scopes.size() - 1);
+        while (declared.size() > start) {
+            var index = declared.remove(declared.size() - 1).getIndex();
+            entries.set(index, entries.get(index).shadowed);
+        }
     }
 
     public void add(Symbol symbol, D value) {
-        symbols.put(symbol, value);
+        var index = symbol.getIndex();
+        while (entries.size() <= index)
+            entries.add(null);
+
+        entries.set(index, new ScopeEntry<>(value, scopes.size(), entries.get(index)));
+        declared.add(symbol);
     }
 
-    public SymbolNode<D> prevScope() {
-        return parent;
+    private ScopeEntry<D> get(Symbol symbol) {
+        var index = symbol.getIndex();
+        return index < entries.size() ? entries.get(index) : null;
     }
 
     public D lookup(Symbol symbol) {
-        for (var cur = this; cur != null; cur = cur.prevScope()) {
-            var out = cur.probe(symbol);
-            if (out != null)
-                return out;
-        }
-        return null;
+        var entry = get(symbol);
+        return entry != null ? entry.value : null;
     }
 
+    // only looks in the innermost scope
     public D probe(Symbol symbol) {
-        return symbols.get(symbol);
+        var entry = get(symbol);
+        return entry != null && entry.scope == scopes.size() ? entry.value : null;
     }
 }
 
 public class Semant {
-    public static ContractNode contract;
-    public static SymbolNode<Symbol> attributes;
-    public static HashMap<Symbol, MethodNode> methods;
+    public ContractNode contract;
+    public SymbolTable<Definition> names;
+    public HashMap<Symbol, MethodNode> methods;
 
-    public static void analyze(ProgramNode program) {
+    private Semant(ProgramNode program) {
         contract = program.getContract();
         populateFeatures();
+    }
 
-        var typeCheckVisitor = new TypeCheckingVisitor();
+    public static void analyze(ProgramNode program) {
+        var typeCheckVisitor = new TypeCheckingVisitor(new Semant(program));
         program.accept(typeCheckVisitor, null);
     }
 
-    private static void populateFeatures() {
-        attributes = new SymbolNode<>();
+    private void populateFeatures() {
+        names = new SymbolTable<>();
         methods = new HashMap<>();
 
+        var attributes = 0;
         for (var feature : contract.getFeatures()) {
-            if (feature instanceof AttributeNode attribute)
-                attributes.add(attribute.getName(), attribute.getType_decl());
-            else if (feature instanceof MethodNode method)
+            if (feature instanceof AttributeNode attribute) {
+                var binding = new Binding(Binding.Kind.ATTRIBUTE, attributes++);
+                names.add(attribute.getName(), new Definition(attribute.getType_decl(), binding));
+            } else if (feature instanceof MethodNode method)
                 methods.put(method.getName(), method);
         }
     }
@@ -0,0 +1,348 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// the outcome of a compile request, kept to answer the same request again
+class CompileResult {
+    public String runtimeCode;
+    public String creationCode;
+    public List<String> messages = new ArrayList<>();
+
+    // the error that stopped the compilation, null if it succeeded
+    public String error;
+
+    // about the bytes the result holds, its text being mostly hex and ASCII
+    public long getSize() {
+        long size = (runtimeCode != null ? runtimeCode.length() : 0) + (creationCode != null ? creationCode.length() : 0)
+                + (error != null ? error.length() : 0);
+        for (var message : messages)
+            size += message.length();
+        return size;
+    }
+}
+
+class ServerStats {
+    // latencies of the most recent requests, in microseconds
+    private static final int WINDOW = 4096;
+
+    public LongAdder requests = new LongAdder();
+    public LongAdder failures = new LongAdder();
+    public LongAdder cacheHits = new LongAdder();
+    public LongAdder cacheMisses = new LongAdder();
+
+    private long[] latencies = new long[WINDOW];
+    private long recorded;
+
+    public synchronized void record(long micros) {
+        latencies[(int) (recorded++ % WINDOW)] = micros;
+    }
+
+    // percentiles of the latencies in the window, in milliseconds
+    private synchronized String getLatencies() {
+        var sorted = Arrays.copyOf(latencies, (int) Math.min(recorded, WINDOW));
+        Arrays.sort(sorted);
+
+        var out = new StringBuilder();
+        for (var percentile : new int[]{50, 90, 99, 100}) {
+            var value = sorted.length == 0 ? 0 : sorted[Math.max((int) Math.ceil(sorted.length * percentile / 100.0) - 1, 0)];
+            out.append(String.format("latency-p%d-ms %.3f\n", percentile, value / 1000.0));
+        }
+        return out.toString();
+    }
+
+    public String toString() {
+        return String.format("requests %d\nfailures %d\ncache-hits %d\ncache-misses %d\n", requests.sum(), failures.sum(),
+                cacheHits.sum(), cacheMisses.sum()) + getLatencies();
+    }
+}
+
+/** Compiles on request, in a JVM that stays up, so requests skip its startup and run warm code.
+ * <p>
+ * Listens on a TCP port of the loopback address, or on a Unix domain socket. A connection
+ * sends requests one line at a time, each answered before the next one is read:
+ * <pre>
+ * compile &lt;path&gt; [options]              compiles a file the server reads
+ * source &lt;name&gt; &lt;bytes&gt; [options]      compiles the given number of bytes of UTF-8
+ *                                       source text that follow the line, up to 16 MiB
+ * stats                                 returns the counters of the server
+ * </pre>
+ * Options are those of the compile command. A compilation is answered with "ok", a
+ * "runtime" and a "creation" line holding the code in hex, or with "error", then with a
+ * "message" line per line of reports or errors, and "end". Counters are answered as one
+ * "name value" line each, followed by "end".
+ * <p>
+ * Each connection is served on a thread of its own, virtual if the JDK has them, and each
+ * request is compiled in a compilation of its own. The results of recent requests are kept,
+ * up to CACHE_BYTES of them, so a request for the same source, options and profile contents
+ * is answered without compiling. No output files are written.
+ * */
+public class Server {
+    // the results kept of recent requests, in bytes
+    private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+    // the longest source text a request can send, in bytes
+    private static final int MAX_SOURCE = 16 * 1024 * 1024;
+
+    private ServerStats stats = new ServerStats();
+
+    // the code of the methods of recent requests, so an edited contract only generates what changed
+    private FragmentCache fragments = new FragmentCache();
+
+    // least recently used first, and the bytes the results hold
+    private LinkedHashMap<String, CompileResult> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+
+    public static void main(String[] args) {
+        SocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 7878);
+        try {
+            for (var arg : args) {
+                if (arg.startsWith("--port=")) {
+                    address = new InetSocketAddress(InetAddress.getLoopbackAddress(), parsePort(arg.substring("--port=".length())));
+                } else if (arg.startsWith("--socket=")) {
+                    address = UnixDomainSocketAddress.of(arg.substring("--socket=".length()));
+                } else {
+                    Utilities.fatalError("Usage: server [--port=N | --socket=path]");
+                }
+            }
+        } catch (CompilationError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            new Server().listen(address);
+        } catch (IOException e) {
+            System.err.println("Server failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int parsePort(String value) {
+        try {
+            var port = Integer.parseInt(value);
+            if (port > 0 && port < 65536)
+                return port;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        Utilities.fatalError("Option '--port' expects a port number, got '" + value + "'");
+        return 0;
+    }
+
+    // virtual threads where the JDK has them, which is from 21 on
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void listen(SocketAddress address) throws IOException {
+        ServerSocketChannel server;
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        System.out.println("Listening on " + address);
+
+        var executor = newExecutor();
+        while (true) {
+            var channel = server.accept();
+            executor.submit(() -> serve(channel));
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            var in = new BufferedInputStream(Channels.newInputStream(channel));
+            var out = Channels.newOutputStream(channel);
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                var fields = line.trim().split("\\s+");
+                String response;
+                try {
+                    response = switch (fields[0]) {
+                        case "compile" -> compileFile(fields);
+                        case "source" -> compileSource(fields, in);
+                        case "stats" -> stats + "end\n";
+                        default -> getError("Unknown request '" + fields[0] + "'");
+                    };
+                } catch (RuntimeException e) {
+                    // fails the request, the connection and the server stay up
+                    response = getError("Request failed: " + e);
+                }
+
+                out.write(response.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    // a line of UTF-8 without its line break, or null at the end of the stream
+    private static String readLine(InputStream in) throws IOException {
+        var line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n')
+            line.write(b);
+
+        if (b == -1 && line.size() == 0)
+            return null;
+        return line.toString(StandardCharsets.UTF_8).replaceFirst("\r$", "");
+    }
+
+    private String compileFile(String[] fields) {
+        if (fields.length < 2)
+            return getError("Usage: compile <path> [options]");
+
+        String text;
+        try {
+            text = Files.readString(Path.of(fields[1]));
+        } catch (IOException e) {
+            return getError("Could not open input file " + fields[1] + ".");
+        }
+        return compile(text, Arrays.copyOfRange(fields, 1, fields.length));
+    }
+
+    private String compileSource(String[] fields, InputStream in) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(fields.length < 3 ? "" : fields[2]);
+        } catch (NumberFormatException e) {
+            return getError("Usage: source <name> <bytes> [options]");
+        }
+
+        if (length < 0)
+            return getError("Usage: source <name> <bytes> [options]");
+
+        // the text is skipped, so the next request is read from the line after it
+        if (length > MAX_SOURCE) {
+            in.skipNBytes(length);
+            return getError("Source of " + length + " bytes is longer than the limit of " + MAX_SOURCE + " bytes");
+        }
+
+        var bytes = in.readNBytes(length);
+        if (bytes.length < length)
+            return getError("Expected " + length + " bytes of source, got " + bytes.length);
+
+        var text = new String(bytes, StandardCharsets.UTF_8);
+        var args = new ArrayList<String>();
+        args.add(fields[1]);
+        args.addAll(Arrays.asList(fields).subList(3, fields.length));
+        return compile(text, args.toArray(new String[0]));
+    }
+
+    // args are those of the compile command, the first one naming the source
+    private String compile(String text, String[] args) {
+        var start = System.nanoTime();
+        stats.requests.increment();
+
+        CompileResult result;
+        try {
+            var options = Options.parse(args);
+            result = getCached(options, text);
+        } catch (CompilationError e) {
+            result = new CompileResult();
+            result.error = e.getMessage();
+        }
+
+        if (result.error != null)
+            stats.failures.increment();
+        stats.record((System.nanoTime() - start) / 1000);
+        return getResponse(result);
+    }
+
+    // the key hashes the source, the options and the contents of the profile, and names the
+    // source as errors do, and whether the stack was checked, which the hash leaves out
+    private CompileResult getCached(Options options, String text) {
+        var key = options.source + " " + options.checkStack + " "
+                + CompileCache.getKey(options, text.getBytes(StandardCharsets.UTF_8));
+        CompileResult result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+
+        if (result != null) {
+            stats.cacheHits.increment();
+            return result;
+        }
+
+        stats.cacheMisses.increment();
+        result = getResult(options, text);
+        synchronized (cache) {
+            var previous = cache.put(key, result);
+            cacheBytes += result.getSize() - (previous != null ? previous.getSize() : 0);
+
+            for (var eldest = cache.values().iterator(); cacheBytes > CACHE_BYTES && eldest.hasNext(); ) {
+                cacheBytes -= eldest.next().getSize();
+                eldest.remove();
+            }
+        }
+        return result;
+    }
+
+    private CompileResult getResult(Options options, String text) {
+        var result = new CompileResult();
+        try {
+            var compilation = new Compilation(options, text);
+            compilation.fragments = fragments;
+            compilation.compile();
+            compilation.report();
+
+            result.runtimeCode = compilation.runtimeCode;
+            result.creationCode = compilation.creationCode;
+            result.messages.addAll(compilation.output.toString().lines().toList());
+        } catch (CompilationError e) {
+            result.error = e.getMessage();
+        } catch (RuntimeException | StackOverflowError e) {
+            result.error = "Compiler crashed: " + e;
+        }
+        return result;
+    }
+
+    private static String getResponse(CompileResult result) {
+        var out = new StringBuilder();
+        if (result.error == null) {
+            out.append("ok\n");
+            out.append("runtime ").append(result.runtimeCode).append("\n");
+            out.append("creation ").append(result.creationCode).append("\n");
+            for (var message : result.messages)
+                out.append("message ").append(message).append("\n");
+        } else {
+            out.append("error\n");
+            result.error.lines().forEach(x -> out.append("message ").append(x).append("\n"));
+        }
+        return out.append("end\n").toString();
+    }
+
+    private static String getError(String message) {
+        var result = new CompileResult();
+        result.error = message;
+        return getResponse(result);
+    }
+}
@@ -0,0 +1,271 @@
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Records the gas of compiled contracts, and checks a compiler change against the recorded gas.
+ * <p>
+ * Every .sol file in a directory is compiled with the default options, and with the profile
+ * in the .profile file next to it if there is one, and deployed in the local EVM, then the
+ * calls listed in the .calls file next to it, if any, are run against it in order. Each line
+ * of a .calls file is a name and a packed calldata in hex, and lines starting with '#' are
+ * comments. A line can go on with "slot=value" pairs in hex, the storage the call has to
+ * leave, and a call that leaves anything else fails the run. A contract with a .error file
+ * next to it has to fail to compile instead, with the "line: message" diagnostics in it.
+ * <p>
+ * The snapshot holds one "contract:name value" line per number: the deployment gas, the size
+ * of the runtime code in bytes and the gas of each call. Gas is the gas spent executing, as
+ * reported by the local EVM. A number that grows by more than the tolerance, in percent,
+ * is a regression, as is a number that is no longer produced.
+ * */
+public class Snapshot {
+    private Path dir = Path.of("../examples");
+    private Path snapshotPath;
+    private double tolerance = 0;
+    private boolean update = false;
+
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+
+    public static void main(String[] args) {
+        try {
+            var snapshot = new Snapshot();
+            snapshot.parseArgs(args);
+            snapshot.run();
+            snapshot.check();
+        } catch (CompilationError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (var arg : args) {
+            if (!arg.startsWith("--")) {
+                dir = Path.of(arg);
+                continue;
+            }
+
+            var eq = arg.indexOf('=');
+            var name = eq == -1 ? arg.substring(2) : arg.substring(2, eq);
+            var value = eq == -1 ? "" : arg.substring(eq + 1);
+
+            switch (name) {
+                case "update" -> update = true;
+                case "snapshot" -> snapshotPath = Path.of(value);
+                case "tolerance" -> {
+                    try {
+                        tolerance = Double.parseDouble(value);
+                    } catch (NumberFormatException e) {
+                        Utilities.fatalError("Option '--tolerance' expects a percentage, got '" + value + "'");
+                    }
+                }
+                default -> Utilities.fatalError("Unknown option '--" + name + "'");
+            }
+        }
+
+        if (snapshotPath == null)
+            snapshotPath = dir.resolve(".gas-snapshot");
+    }
+
+    private void run() {
+        var sources = new ArrayList<Path>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(x -> x.toString().endsWith(".sol")).sorted().forEach(sources::add);
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, dir);
+        }
+
+        for (var source : sources)
+            run(source);
+    }
+
+    private void run(Path source) {
+        var name = source.getFileName().toString().replaceFirst("\\.sol$", "");
+
+        // every contract's stack is checked, and a profile next to it orders its dispatcher
+        var args = new ArrayList<String>(List.of(source.toString(), "--check-stack=on"));
+        var profilePath = source.resolveSibling(name + ".profile");
+        if (Files.exists(profilePath))
+            args.add("--profile=" + profilePath);
+
+        var compilation = new Compilation(Options.parse(args.toArray(new String[0])));
+        var errorPath = source.resolveSibling(name + ".error");
+        if (Files.exists(errorPath)) {
+            expectError(compilation, errorPath);
+            return;
+        }
+        compilation.compile();
+
+        var evm = new Evm();
+        var result = evm.deploy(Hex.decode(compilation.creationCode));
+        if (!result.isSuccess())
+            Utilities.fatalError(source + ": deployment failed, " + result);
+
+        entries.put(name + ":deploy", result.gasUsed);
+        entries.put(name + ":size", (long) evm.runtime.length);
+
+        var callsPath = source.resolveSibling(name + ".calls");
+        if (!Files.exists(callsPath))
+            return;
+
+        try {
+            for (var line : Files.readAllLines(callsPath)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                var fields = line.split("\\s+");
+                if (fields.length < 2)
+                    Utilities.fatalError(callsPath + ": expected a name and a calldata, got '" + line + "'");
+
+                var data = fields[1].startsWith("0x") ? fields[1].substring(2) : fields[1];
+                result = evm.call(Hex.decode(data));
+                if (!result.isSuccess())
+                    Utilities.fatalError(callsPath + ": call '" + fields[0] + "' failed, " + result);
+
+                for (int i = 2; i < fields.length; i++)
+                    expect(evm, callsPath, fields[0], fields[i]);
+
+                entries.put(name + ":" + fields[0], result.gasUsed);
+            }
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, callsPath);
+        }
+    }
+
+    // fails unless compiling fails with exactly the diagnostics listed in the .error file
+    private static void expectError(Compilation compilation, Path errorPath) {
+        var expected = new ArrayList<String>();
+        try {
+            for (var line : Files.readAllLines(errorPath)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    expected.add(line);
+            }
+        } catch (IOException e) {
+            Utilities.fatalError(Utilities.ErrorCode.OPEN_FILE, errorPath);
+        }
+
+        try {
+            compilation.compile();
+        } catch (CompilationError e) {
+            var actual = e.diagnostics.stream().map(x -> x.line + ": " + x.message).toList();
+            if (!actual.equals(expected))
+                Utilities.fatalError(errorPath + ": expected " + expected + ", got " + actual);
+            return;
+        }
+        Utilities.fatalError(errorPath + ": compiled, expected " + expected);
+    }
+
+    // fails unless the storage holds the value of a "slot=value" pair
+    private static void expect(Evm evm, Path callsPath, String call, String pair) {
+        var fields = pair.split("=");
+        if (fields.length != 2)
+            Utilities.fatalError(callsPath + ": expected slot=value after call '" + call + "', got '" + pair + "'");
+
+        var slot = toHex(callsPath, fields[0]);
+        var expected = toHex(callsPath, fields[1]);
+
+        // words print in hex without leading zeros, and slots never written hold zero
+        var actual = "0";
+        for (var entry : evm.storage.entrySet()) {
+            if (entry.getKey().toString().equals(slot))
+                actual = entry.getValue().toString();
+        }
+
+        if (!actual.equals(expected))
+            Utilities.fatalError(String.format("%s: call '%s' left slot 0x%s at 0x%s, expected 0x%s",
+                    callsPath, call, slot, actual, expected));
+    }
+
+    private static String toHex(Path callsPath, String number) {
+        try {
+            return new BigInteger(number.startsWith("0x") ? number.substring(2) : number, 16).toString(16);
+        } catch (NumberFormatException e) {
+            Utilities.fatalError(callsPath + ": expected a number in hex, got '" + number + "'");
+            return null;
+        }
+    }
+
+    private static LinkedHashMap<String, Long> read(Path path) {
+        var entries = new LinkedHashMap<String, Long>();
+        try {
+            for (var line : Files.readAllLines(path)) {
+                var fields = line.trim().split("\\s+");
+                if (fields.length == 2)
+                    entries.put(fields[0], Long.parseLong(fields[1]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            Utilities.fatalError("Failed to read gas snapshot " + path + ": " + e.getMessage());
+        }
+        return entries;
+    }
+
+    private void write() {
+        try (var out = new PrintWriter(snapshotPath.toFile())) {
+            for (var entry : entries.entrySet())
+                out.println(entry.getKey() + " " + entry.getValue());
+            System.out.println("Gas snapshot written to: " + snapshotPath);
+        } catch (FileNotFoundException e) {
+            Utilities.fatalError("Failed to write gas snapshot: " + e.getMessage());
+        }
+    }
+
+    // prints the numbers that changed, then fails if any of them regressed
+    private void check() {
+        if (update || !Files.exists(snapshotPath)) {
+            write();
+            return;
+        }
+
+        var recorded = read(snapshotPath);
+        var diff = new ArrayList<String>();
+        var regressions = 0;
+
+        for (var entry : recorded.entrySet()) {
+            var before = entry.getValue();
+            var after = entries.get(entry.getKey());
+
+            if (after == null) {
+                diff.add(String.format("  %-40s %10d -> %10s  REGRESSION", entry.getKey(), before, "missing"));
+                regressions++;
+                continue;
+            }
+            if (after.equals(before))
+                continue;
+
+            var change = before == 0 ? Double.POSITIVE_INFINITY : 100.0 * (after - before) / before;
+            var regressed = after > before && change > tolerance;
+            diff.add(String.format("  %-40s %10d -> %10d  %+.2f%%%s", entry.getKey(), before, after, change,
+                    regressed ? "  REGRESSION" : ""));
+            if (regressed)
+                regressions++;
+        }
+
+        for (var entry : entries.entrySet()) {
+            if (!recorded.containsKey(entry.getKey()))
+                diff.add(String.format("  %-40s %10s -> %10d", entry.getKey(), "new", entry.getValue()));
+        }
+
+        if (diff.isEmpty()) {
+            System.out.println("Gas snapshot matches " + snapshotPath);
+            return;
+        }
+
+        System.out.println("Gas snapshot differs from " + snapshotPath + ":");
+        diff.forEach(System.out::println);
+
+        if (regressions > 0)
+            Utilities.fatalError(String.format("%d regression%s beyond the %s%% tolerance, run with --update to accept them",
+                    regressions, regressions > 1 ? "s" : "", tolerance));
+        System.out.println("No regression beyond the " + tolerance + "% tolerance, run with --update to record the changes");
+    }
+}
@@ -0,0 +1,85 @@
+import org.bouncycastle.util.encoders.Hex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// what compiling a source produced, the code being null if it did not compile
+class CompilerOutput {
+    public byte[] runtimeCode;
+    public byte[] creationCode;
+
+    // the storage layout as JSON, and the reports of the code generator
+    public String layout;
+    public List<String> reports = new ArrayList<>();
+
+    public List<Diagnostic> diagnostics = new ArrayList<>();
+
+    public boolean isSuccess() {
+        return diagnostics.isEmpty();
+    }
+}
+
+/** Compiles source held in memory, for programs that embed the compiler.
+ * <p>
+ * Nothing is read from or written to the filesystem, unless the options name a
+ * profile to read. Errors are returned as diagnostics rather than thrown. A compiler
+ * can be reused, and called from several threads at once. It keeps the code generated
+ * for each method, so compiling a contract again after an edit only generates the
+ * methods the edit affects.
+ * */
+public class SolidityCompiler {
+    private Options options;
+
+    // shared by the compilations of this compiler, so a method that did not change is not generated again
+    private FragmentCache fragments = new FragmentCache();
+
+    public SolidityCompiler() {
+        this(new Options());
+    }
+
+    /** Creates a compiler that compiles every source with the given options
+     * */
+    public SolidityCompiler(Options options) {
+        this.options = options;
+    }
+
+    /** Compiles UTF-8 source text, read from the position of the buffer to its limit
+     * <p>
+     * The position of the buffer is left as it is.
+     *
+     * @param name   the name diagnostics refer to the source by
+     * @param source the source text
+     * */
+    public CompilerOutput compile(String name, ByteBuffer source) {
+        return compile(name, StandardCharsets.UTF_8.decode(source.duplicate()).toString());
+    }
+
+    /** Compiles source text
+     *
+     * @param name   the name diagnostics refer to the source by
+     * @param source the source text
+     * */
+    public CompilerOutput compile(String name, String source) {
+        var output = new CompilerOutput();
+        var compilation = new Compilation(options.withSource(name), source);
+        compilation.fragments = fragments;
+        try {
+            compilation.compile();
+            compilation.report();
+        } catch (CompilationError e) {
+            output.diagnostics.addAll(e.diagnostics);
+            return output;
+        } catch (RuntimeException | StackOverflowError e) {
+            output.diagnostics.add(new Diagnostic(name, -1, -1, "Compiler crashed: " + e));
+            return output;
+        }
+
+        output.runtimeCode = Hex.decode(compilation.runtimeCode);
+        output.creationCode = Hex.decode(compilation.creationCode);
+        output.layout = compilation.cgen.storage.toString();
+        output.reports.addAll(compilation.output.toString().lines().toList());
+        return output;
+    }
+}
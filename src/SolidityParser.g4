@@ -2,6 +2,10 @@ parser grammar SolidityParser;
 
 options { tokenVocab = SolidityLexer; }
 
+@members {
+    public int lexErrors = 0;
+}
+
 program 
 	: VERSION contract EOF
 	;
@@ -66,5 +70,5 @@ expr
     ;
 
 error
-    : ERROR { Utilities.lexError(); }
+    : ERROR { lexErrors++; }
     ;
\ No newline at end of file
@@ -1,33 +1,119 @@
 
 import ast.Symbol;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class StringTable extends HashMap<String, Symbol> {
+/** Interns names into symbols, so that symbols with the same name are the same object.
+ * <p>
+ * A table looks names up straight from a char range, such as a token's in the source,
+ * and only allocates when it adds a symbol. Symbols are numbered densely in the order
+ * they are added, so their indexes can index arrays.
+ * <p>
+ * Each compilation interns into tables of its own, which go away with it, over the
+ * symbols TreeConstants predefines. Those are looked up first, so the predefined types
+ * are the same objects in every compilation, and new symbols are numbered after them.
+ * A table can also be shared by any number of threads: lookups take no lock, and adding
+ * a symbol takes the table's lock.
+ * */
+public class StringTable {
+    public static int MAXSIZE = 1024;
 
-    public static StringTable idtable = new StringTable();
-    public static StringTable stringtable = new StringTable();
-    public static StringTable inttable = new StringTable();
+    private StringTable parent;
 
-    public static int MAXSIZE = 1024;
+    // open addressing with linear probing, entries are never removed, nor moved once visible
+    private volatile AtomicReferenceArray<Symbol> symbols = new AtomicReferenceArray<>(64);
+    private volatile int size = 0;
+
+    /** Creates a table over the predefined symbols
+     * */
+    public StringTable() {
+        this(TreeConstants.symbols);
+    }
+
+    StringTable(StringTable parent) {
+        this.parent = parent;
+    }
+
+    public int size() {
+        return (parent != null ? parent.size() : 0) + size;
+    }
 
     public Symbol addString(String s) {
-        if (s.length() > MAXSIZE)
-            s = s.substring(0, MAXSIZE);
-
-        /* the following line requires java 8 */
-        return this.computeIfAbsent(s, k -> new Symbol(k,this.size()));
-
-        /* before java 8 use this code instead of computeIfAbsent: */
-        /*
-        Symbol sym  = this.get(s);
-        if (sym == null) {
-            sym = new Symbol(s, this.size());
-            this.put(s, sym);
+        return addString(s.toCharArray(), 0, s.length());
+    }
+
+    /** Returns the symbol named by a range of chars, adding it if there is none
+     *
+     * @param chars the chars
+     * @param start the first char of the name
+     * @param end   the char after the last one of the name
+     * */
+    public Symbol addString(char[] chars, int start, int end) {
+        if (end - start > MAXSIZE)
+            end = start + MAXSIZE;
+
+        var hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + chars[i];
+
+        var symbol = parent != null ? parent.get(chars, start, end, hash) : null;
+        if (symbol == null)
+            symbol = get(chars, start, end, hash);
+        return symbol != null ? symbol : add(chars, start, end, hash);
+    }
+
+    // a lookup that misses on a table another thread has since grown tries again in add
+    private Symbol get(char[] chars, int start, int end, int hash) {
+        var table = symbols;
+        var mask = table.length() - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            var symbol = table.get(i);
+            if (symbol == null || matches(symbol.getName(), chars, start, end))
+                return symbol;
+        }
+    }
+
+    private synchronized Symbol add(char[] chars, int start, int end, int hash) {
+        var symbol = get(chars, start, end, hash);
+        if (symbol != null)
+            return symbol;
+
+        // at most half full, and the new table is only visible once it holds every symbol
+        if (2 * (size + 1) > symbols.length()) {
+            var table = new AtomicReferenceArray<Symbol>(2 * symbols.length());
+            for (int i = 0; i < symbols.length(); i++) {
+                if (symbols.get(i) != null)
+                    insert(table, symbols.get(i), symbols.get(i).getName().hashCode());
+            }
+            symbols = table;
         }
-        return sym;
-        */
+
+        symbol = new Symbol(new String(chars, start, end - start), size());
+        insert(symbols, symbol, hash);
+        size++;
+        return symbol;
+    }
+
+    private static void insert(AtomicReferenceArray<Symbol> table, Symbol symbol, int hash) {
+        var mask = table.length() - 1;
+        var i = spread(hash) & mask;
+        while (table.get(i) != null)
+            i = (i + 1) & mask;
+        table.set(i, symbol);
     }
 
+    // the hash of a name is that of its String, so the table can grow from the names alone
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
 
+    private static boolean matches(String name, char[] chars, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != chars[start + i])
+                return false;
+        }
+        return true;
+    }
 }
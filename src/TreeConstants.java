@@ -1,14 +1,17 @@
 import ast.Symbol;
 
 class TreeConstants {
-    public static final Symbol void_ = StringTable.idtable.addString("void");
-    public static final Symbol uint256 = StringTable.idtable.addString("uint256");
-    public static final Symbol uint128 = StringTable.idtable.addString("uint128");
-    public static final Symbol uint64 = StringTable.idtable.addString("uint64");
-    public static final Symbol uint32 = StringTable.idtable.addString("uint32");
-    public static final Symbol uint16 = StringTable.idtable.addString("uint16");
-    public static final Symbol uint8 = StringTable.idtable.addString("uint8");
-    public static final Symbol bool = StringTable.idtable.addString("bool");
+    // every compilation's table of identifiers looks these up first, see StringTable
+    static final StringTable symbols = new StringTable(null);
+
+    public static final Symbol void_ = symbols.addString("void");
+    public static final Symbol uint256 = symbols.addString("uint256");
+    public static final Symbol uint128 = symbols.addString("uint128");
+    public static final Symbol uint64 = symbols.addString("uint64");
+    public static final Symbol uint32 = symbols.addString("uint32");
+    public static final Symbol uint16 = symbols.addString("uint16");
+    public static final Symbol uint8 = symbols.addString("uint8");
+    public static final Symbol bool = symbols.addString("bool");
 
     public static boolean isPrimitive(Symbol type) {
         return
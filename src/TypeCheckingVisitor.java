@@ -3,29 +3,44 @@ import ast.visitor.BaseVisitor;
 
 class TypeEnv {
     private MethodNode method;
-    private SymbolNode<Symbol> variables;
+    private SymbolTable<Definition> names;
 
-    public TypeEnv(MethodNode method, SymbolNode<Symbol> variables) {
-        this.method = method;
-        this.variables = variables;
-    }
+    // formals and locals declared so far, which numbers the next one
+    private int variables;
 
-    public TypeEnv nextScope() {
-        return new TypeEnv(method, variables.nextScope());
+    public TypeEnv(MethodNode method, SymbolTable<Definition> names) {
+        this.method = method;
+        this.names = names;
     }
 
     public MethodNode getMethod() {
         return method;
     }
 
-    public SymbolNode<Symbol> getVariables() {
+    public SymbolTable<Definition> getNames() {
+        return names;
+    }
+
+    public int getVariables() {
         return variables;
     }
+
+    public Binding declareVariable(Symbol name, Symbol type) {
+        var binding = new Binding(Binding.Kind.VARIABLE, variables++);
+        names.add(name, new Definition(type, binding));
+        return binding;
+    }
 }
 
 public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
+    private Semant semant;
+
+    public TypeCheckingVisitor(Semant semant) {
+        this.semant = semant;
+    }
+
     private Symbol error(String message, TreeNode node) {
-        Utilities.semantError(Semant.contract.getFilename(), node, message);
+        Utilities.semantError(semant.contract.getFilename(), node, message);
         return TreeConstants.void_;
     }
 
@@ -47,7 +62,9 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
 
     @Override
     public Symbol visit(MethodNode node, TypeEnv ctx) {
-        ctx = new TypeEnv(node, Semant.attributes.nextScope());
+        // formals in a scope of their own, so locals can shadow them
+        ctx = new TypeEnv(node, semant.names);
+        ctx.getNames().enterScope();
 
         int arg = 1;
         for (var formal : node.getFormals()) {
@@ -57,16 +74,24 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
             if (!TreeConstants.isPrimitive(type))
                 return error("Formal parameter " + arg + " undefined symbol '" + type + "'", node);
 
-            if (ctx.getVariables().probe(name) != null)
+            if (ctx.getNames().probe(name) != null)
                 return error("Formal parameter " + name + " is multiply defined", node);
 
-            ctx.getVariables().add(name, type);
+            ctx.declareVariable(name, type);
             arg++;
         }
 
-        var innerScope = ctx.nextScope();
-        for (var expr : node.getExprs())
-            visit(expr, innerScope);
+        // a return is a statement of the method body, never part of an expression
+        ctx.getNames().enterScope();
+        for (var expr : node.getExprs()) {
+            if (expr instanceof ReturnNode ret)
+                checkReturn(ret, ctx);
+            else
+                visit(expr, ctx);
+        }
+        ctx.getNames().exitScope();
+        ctx.getNames().exitScope();
+        node.setVariables(ctx.getVariables());
 
         var returnType = node.getReturn_type();
         if (!TreeConstants.isPrimitive(returnType))
@@ -76,14 +101,17 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
 
     @Override
     public Symbol visit(AssignNode node, TypeEnv ctx) {
-        var lhs = ctx.getVariables().lookup(node.getName());
-        if (lhs == null)
+        var definition = ctx.getNames().lookup(node.getName());
+        if (definition == null)
             return errorUndefined(node.getName(), node);
 
+        var lhs = definition.type;
         var rhs = visit(node.getExpr(), ctx);
         if (lhs != rhs)
             return errorTypeMismatch(lhs, rhs, node);
 
+        node.setBinding(definition.binding);
+
         node.setType(TreeConstants.void_);
         return TreeConstants.void_;
     }
@@ -95,7 +123,7 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
             return errorUndefined(lhs, node);
 
         var name = node.getName();
-        if (ctx.getVariables().probe(name) != null)
+        if (ctx.getNames().probe(name) != null)
             return error("Local variable '" + name + "' is multiply defined", node);
 
         var rhs = visit(node.getExpr(), ctx);
@@ -103,7 +131,7 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
             return errorTypeMismatch(lhs, rhs, node);
 
         // expression evaluated before adding to scope
-        ctx.getVariables().add(name, lhs);
+        node.setBinding(ctx.declareVariable(name, lhs));
 
         node.setType(TreeConstants.void_);
         return TreeConstants.void_;
@@ -111,6 +139,10 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
 
     @Override
     public Symbol visit(ReturnNode node, TypeEnv ctx) {
+        return error("Return is only allowed as a statement", node);
+    }
+
+    private Symbol checkReturn(ReturnNode node, TypeEnv ctx) {
         var actual = visit(node.getExpr(), ctx);
         var expected = ctx.getMethod().getReturn_type();
 
@@ -152,7 +184,7 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
 
     @Override
     public Symbol visit(DispatchNode node, TypeEnv ctx) {
-        var method = Semant.methods.get(node.getName());
+        var method = semant.methods.get(node.getName());
         if (method == null)
             return error("Dispatch to undefined method " + node.getName() + ".", node);
 
@@ -215,18 +247,32 @@ public class TypeCheckingVisitor extends BaseVisitor<Symbol, TypeEnv> {
         return TreeConstants.bool;
     }
 
+    @Override
+    public Symbol visit(CompNode node, TypeEnv ctx) {
+        var type = visit(node.getE1(), ctx);
+        if (type != TreeConstants.bool)
+            return errorTypeMismatch(TreeConstants.bool, type, node);
+
+        node.setType(TreeConstants.bool);
+        return TreeConstants.bool;
+    }
+
     @Override
     public Symbol visit(ObjectNode node, TypeEnv ctx) {
-        var type = ctx.getVariables().lookup(node.getName());
-        if (type == null)
+        var definition = ctx.getNames().lookup(node.getName());
+        if (definition == null)
             return errorUndefined(node.getName(), node);
 
-        node.setType(type);
-        return type;
+        node.setBinding(definition.binding);
+        node.setType(definition.type);
+        return definition.type;
     }
 
     @Override
     public Symbol visit(IntConstNode node, TypeEnv ctx) {
+        if (node.getValue().bitLength() > 256)
+            return error("Integer literal " + node.getVal() + " does not fit in 'uint256'", node);
+
         // should determine type based on size
         node.setType(TreeConstants.uint256);
         return TreeConstants.uint256;
@@ -1,15 +1,47 @@
 import ast.Symbol;
 import ast.TreeNode;
 
-import java.io.PrintStream;
 import java.util.EnumMap;
+import java.util.List;
 
-public class Utilities {
-    private static int lexErrors = 0;
-    private static int parseErrors = 0;
-    private static int semantErrors = 0;
-    private static PrintStream errorStream = System.err;;
+// an error found by the compiler, with where in the source it is if that is known
+class Diagnostic {
+    public String source;
+    public int line = -1;
+    public int column = -1;
+    public String message;
+
+    Diagnostic(String source, int line, int column, String message) {
+        this.source = source;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    Diagnostic(String message) {
+        this.message = message;
+    }
+
+    public String toString() {
+        if (source == null)
+            return message;
+        return source + (line != -1 ? ":" + line : "") + (column != -1 ? ":" + column : "") + ": " + message;
+    }
+}
+
+// stops a compilation, without affecting any other compilation running at the same time
+class CompilationError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public List<Diagnostic> diagnostics;
+
+    CompilationError(String msg, List<Diagnostic> diagnostics) {
+        super(msg, null, false, false);
+        this.diagnostics = diagnostics;
+    }
+}
 
+public class Utilities {
     public enum ErrorCode {
 		OPEN_FILE,
 		EXCEPTION_LEXER,
@@ -22,19 +54,30 @@ public class Utilities {
 			errorMessages.put(ErrorCode.OPEN_FILE, "Could not open input file %s.");
 			errorMessages.put(ErrorCode.EXCEPTION_LEXER, "Unexpected exception in lexer");
 			errorMessages.put(ErrorCode.EXCEPTION_PARSER, "Unexpected exception in parser");
-			errorMessages.put(ErrorCode.LEXER_PARSER, "Compilation halted due to lex and parse errors");
+			errorMessages.put(ErrorCode.LEXER_PARSER, "Compilation halted due to lex and parse errors%s");
 	};
 
-    /** Prints error message and exits
+    /** Stops the compilation with an error message, which its entry point reports
     *
     * @param msg the error message
     * */
 	public static void fatalError(String msg) {
-        errorStream.println(msg);
-		System.exit(1);
+        throw new CompilationError(msg, List.of(new Diagnostic(msg)));
 	}
 
-    /** Prints error message and exits
+    /** Stops the compilation with errors found in the source
+     *
+     * @param code        the error message, given the errors as its argument
+     * @param diagnostics the errors
+     * */
+    public static void fatalError(ErrorCode code, List<Diagnostic> diagnostics) {
+        var out = new StringBuilder();
+        for (var diagnostic : diagnostics)
+            out.append(System.lineSeparator()).append(diagnostic);
+        throw new CompilationError(String.format(errorMessages.get(code), out), diagnostics);
+    }
+
+    /** Stops the compilation with an error message, which its entry point reports
      *
      * @param code the error message
      * */
@@ -43,28 +86,15 @@ public class Utilities {
 	}
 
     /**
-     * Prints the file name and the line number of the given tree node.
-     * <p>
-     * Also increments semantic error count.
+     * Stops the compilation with the file name and the line number of the given tree node.
      *
      * @param filename the file name
      * @param t        the tree node
      * to be printed.
      */
     public static void semantError(Symbol filename, TreeNode t, String msg) {
-        fatalError(filename.getName() + ":" + t.getLineNumber() + ": " + msg);
-    }
-
-    /**
-     * Returns true if there are any static semantic errors.
-     */
-    public static boolean errors() {
-        return (semantErrors != 0 || parseErrors != 0 || lexErrors != 0);
-    }
-
-    public static PrintStream lexError() {
-        lexErrors++;
-        return errorStream;
+        var diagnostic = new Diagnostic(filename.getName(), t.getLineNumber(), -1, msg);
+        throw new CompilationError(diagnostic.toString(), List.of(diagnostic));
     }
 }
 
@@ -5,6 +5,7 @@ import ast.visitor.TreeVisitor;
 public class AssignNode extends ExpressionNode {
     protected Symbol name;
     protected ExpressionNode expr;
+    protected Binding binding;
 
     public Symbol getName() {
         return name;
@@ -14,6 +15,18 @@ public class AssignNode extends ExpressionNode {
         return expr;
     }
 
+    public void setExpr(ExpressionNode expr) {
+        this.expr = expr;
+    }
+
+    public Binding getBinding() {
+        return binding;
+    }
+
+    public void setBinding(Binding binding) {
+        this.binding = binding;
+    }
+
     public AssignNode(int lineNumber, Symbol name, ExpressionNode expr) {
         super(lineNumber);
         this.name = name;
@@ -0,0 +1,31 @@
+package ast;
+
+/** What a name resolves to where it is used, as the type checker found it.
+ * <p>
+ * Variables are the formals and locals of a method, numbered from 0 in the order they are
+ * declared, formals first. Attributes are numbered from 0 in the order the contract declares
+ * them. A shadowing local gets a number of its own, so each number names one declaration.
+ * */
+public class Binding {
+    public enum Kind { VARIABLE, ATTRIBUTE }
+
+    private Kind kind;
+    private int index;
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isVariable() {
+        return kind == Kind.VARIABLE;
+    }
+
+    public Binding(Kind kind, int index) {
+        this.kind = kind;
+        this.index = index;
+    }
+}
@@ -14,6 +14,10 @@ public class CastNode extends ExpressionNode {
         return expr;
     }
 
+    public void setExpr(ExpressionNode expr) {
+        this.expr = expr;
+    }
+
     public CastNode(int lineNumber, Symbol type, ExpressionNode expr) {
         super(lineNumber);
         this.type_decl = type;
@@ -6,6 +6,7 @@ public class DeclarationNode extends ExpressionNode {
     protected Symbol name;
     protected Symbol type_decl;
     protected ExpressionNode expr;
+    protected Binding binding;
 
     public Symbol getName() {
         return name;
@@ -19,6 +20,18 @@ public class DeclarationNode extends ExpressionNode {
         return expr;
     }
 
+    public void setExpr(ExpressionNode expr) {
+        this.expr = expr;
+    }
+
+    public Binding getBinding() {
+        return binding;
+    }
+
+    public void setBinding(Binding binding) {
+        this.binding = binding;
+    }
+
     public DeclarationNode(int lineNumber, Symbol name, Symbol type, ExpressionNode expr) {
         super(lineNumber);
         this.name = name;
@@ -2,11 +2,17 @@ package ast;
 
 import ast.visitor.TreeVisitor;
 
+import java.math.BigInteger;
+
 public class IntConstNode extends ConstNode<Symbol> {
     public IntConstNode(int lineNumber, Symbol val) {
         super(lineNumber, val);
     }
 
+    public BigInteger getValue() {
+        return new BigInteger(val.getName());
+    }
+
     public <R,D> R accept(TreeVisitor<R,D> visitor, D data) {
         return visitor.visit(this, data);
     }
@@ -10,6 +10,7 @@ public class MethodNode  extends FeatureNode {
     protected boolean public_;
     protected Symbol return_type;
     protected List<ExpressionNode> exprs;
+    protected int variables;
 
     public Symbol getName() {
         return name;
@@ -31,6 +32,15 @@ public class MethodNode  extends FeatureNode {
         return exprs;
     }
 
+    // number of formals and locals, which the type checker binds to 0 up to this
+    public int getVariables() {
+        return variables;
+    }
+
+    public void setVariables(int variables) {
+        this.variables = variables;
+    }
+
 
     public MethodNode(int lineNumber, Symbol name, List<FormalNode> formals, boolean public_, Symbol return_type, List<ExpressionNode> exprs) {
         super(lineNumber);
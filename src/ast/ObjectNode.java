@@ -4,11 +4,20 @@ import ast.visitor.TreeVisitor;
 
 public class ObjectNode extends ExpressionNode {
     protected Symbol name;
+    protected Binding binding;
 
     public Symbol getName() {
         return name;
     }
 
+    public Binding getBinding() {
+        return binding;
+    }
+
+    public void setBinding(Binding binding) {
+        this.binding = binding;
+    }
+
     public ObjectNode(int lineNumber, Symbol name) {
         super(lineNumber);
         this.name = name;
@@ -9,6 +9,10 @@ public class ReturnNode extends ExpressionNode {
         return expr;
     }
 
+    public void setExpr(ExpressionNode expr) {
+        this.expr = expr;
+    }
+
     public ReturnNode(int lineNumber, ExpressionNode expr) {
         super(lineNumber);
         this.expr = expr;
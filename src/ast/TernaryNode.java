@@ -11,14 +11,26 @@ public class TernaryNode extends ExpressionNode {
         return cond;
     }
 
+    public void setCond(ExpressionNode cond) {
+        this.cond = cond;
+    }
+
     public ExpressionNode getE1() {
         return e1;
     }
 
+    public void setE1(ExpressionNode e1) {
+        this.e1 = e1;
+    }
+
     public ExpressionNode getE2() {
         return e2;
     }
 
+    public void setE2(ExpressionNode e2) {
+        this.e2 = e2;
+    }
+
     public TernaryNode(int lineNumber, ExpressionNode cond, ExpressionNode e1, ExpressionNode e2) {
         super(lineNumber);
         this.cond = cond;
@@ -17,4 +17,8 @@ public abstract class UnopNode extends ExpressionNode {
     public ExpressionNode getE1() {
         return e1;
     }
+
+    public void setE1(ExpressionNode e1) {
+        this.e1 = e1;
+    }
 }
@@ -83,6 +83,7 @@ public class BaseVisitor<R,D> implements TreeVisitor<R,D> {
     public R visit(DeclarationNode node, D data) {
         visit(node.getName(), data);
         visit(node.getType_decl(), data);
+        visit((Tree) node.getExpr(), data);
         return base(node, data);
     }
 